@@ -5,10 +5,13 @@
 #include <stdlib.h>
 #include <iostream>
 #include <string>
+#include <chrono>
+#include <deque>
+#include <mutex>
 #include <unistd.h>
 #include <opencv2/highgui/highgui.hpp>
 #include <opencv2/imgproc/imgproc.hpp>
-#include <opencv2/photo/photo.hpp>z
+#include <opencv2/photo/photo.hpp>
 
 using namespace std;
 using namespace cv;
@@ -18,9 +21,83 @@ using namespace cv;
     const int DARKNESS_WEIGHT_SCALE = 100;
     const float EYE_ROI_PROPORTION_WIDTH = 0.40f;
     const float EYE_ROI_PROPORTION_HEIGHT = 0.30f;
+// Layout of the batched locator arrays, must match PupilExecutor
+    const int EYE_STRIDE = 6;
+    const int PUPIL_STRIDE = 5;
+// Fields of one eye record. EYE_HAS_PRIOR is 1 if the previous pupil is known and 0 otherwise
+    const int EYE_X = 0;
+    const int EYE_Y = 1;
+    const int EYE_DISTANCE = 2;
+    const int EYE_HAS_PRIOR = 3;
+    const int EYE_PRIOR_X = 4;
+    const int EYE_PRIOR_Y = 5;
+// Fields of one pupil result, and its status codes
+    const int PUPIL_X = 0;
+    const int PUPIL_Y = 1;
+    const int PUPIL_CONFIDENCE = 2;
+    const int PUPIL_STATUS = 3;
+    const int PUPIL_MICROS = 4;
+    const int STATUS_FOUND = 0;
+    const int STATUS_FAILED = 1;
+    const int STATUS_OUT_OF_BOUNDS = 2;
+    const int MAX_BATCH_EYES = 16;
+// Coarse-to-fine search: the exhaustive centermap only runs at fastSize_width, every finer level
+// only scores the candidates within PYRAMID_REFINE_RADIUS of the estimate of the previous level.
+    const bool PYRAMID_SEARCH = true;
+    const int PYRAMID_REFINE_RADIUS = 2;
+// Fast specular suppression fills every specularity with the median of the dark pixels within
+// SPECULAR_CLAMP_MARGIN of it, instead of inpainting it, see erase_specular.
+    const int SPECULAR_CLAMP_MARGIN = 4;
+// Temporal tracking: while the previous pupil is known, only the full size candidates within
+// TRACKING_WINDOW_RADIUS of it are scored. The full search runs again when the best candidate lies
+// on the border of the window, or when its score drops below TRACKING_MIN_CONFIDENCE of the total
+// gradient weight.
+    const bool TEMPORAL_TRACKING = true;
+    const int TRACKING_WINDOW_RADIUS = 3;
+    const float TRACKING_MIN_CONFIDENCE = 0.2f;
+// The second peak of a score map is its highest local maximum further than PEAK_EXCLUSION_RADIUS
+// from the peak. The confidence of a center is 1 - second peak / peak.
+    const int PEAK_EXCLUSION_RADIUS = 2;
+// Largest kernel radius of the filters run on the eye ROI: the 5x5 Gaussian blurs, the closing with
+// the 5x5 ellipse and the 5x5 Sobel. The rotated ROI is padded by it, so that the filters read the
+// same neighbouring pixels as on a view of the whole rotated frame.
+    const int ROI_FILTER_PADDING = 2;
+// Stages timed into the shared counters block, must match NativeStageCounters
+    const int STAGE_ROTATE = 0;
+    const int STAGE_EQUALIZE = 1;
+    const int STAGE_SPECULAR = 2;
+    const int STAGE_RESIZE = 3;
+    const int STAGE_BLUR = 4;
+    const int STAGE_TRACK = 5;
+    const int STAGE_CENTERMAP = 6;
+    const int STAGE_REFINE = 7;
+    const int STAGE_COUNT = 8;
+// Fields of one stage in the counters block
+    const int COUNTER_CALLS = 0;
+    const int COUNTER_TOTAL_NANOS = 1;
+    const int COUNTER_MAX_NANOS = 2;
+    const int COUNTER_STRIDE = 3;
 // 80 and 45
 
-void erase_specular(Mat eye_grey) {
+// Per-stage timings of all eyes located so far. Java reads the block in place through a direct
+// ByteBuffer, so every worker thread updates it with relaxed atomics only. On the ABIs without 64-bit
+// atomic instructions these are libatomic calls, see CMakeLists.txt.
+alignas(8) static int64_t stage_counters[STAGE_COUNT * COUNTER_STRIDE];
+
+void record_stage(int stage, chrono::steady_clock::time_point start) {
+    int64_t nanos = chrono::duration_cast<chrono::nanoseconds>(
+            chrono::steady_clock::now() - start).count();
+    int64_t* counters = stage_counters + stage * COUNTER_STRIDE;
+    __atomic_fetch_add(counters + COUNTER_CALLS, 1, __ATOMIC_RELAXED);
+    __atomic_fetch_add(counters + COUNTER_TOTAL_NANOS, nanos, __ATOMIC_RELAXED);
+    int64_t max = __atomic_load_n(counters + COUNTER_MAX_NANOS, __ATOMIC_RELAXED);
+    while (nanos > max && !__atomic_compare_exchange_n(counters + COUNTER_MAX_NANOS, &max, nanos,
+                                                       true, __ATOMIC_RELAXED, __ATOMIC_RELAXED));
+}
+
+// Erases the specularities of eye_grey, with the fast suppression if fast and by inpainting them
+// otherwise.
+void erase_specular(Mat eye_grey, bool fast) {
 
     // Rather arbitrary decision on how large a specularity may be
     int max_spec_contour_area = (eye_grey.size().width + eye_grey.size().height)/2;
@@ -42,7 +119,7 @@ void erase_specular(Mat eye_grey) {
 
     // Find all contours in threshed image (possible specularities)
     vector< vector<Point> > all_contours, contours;
-    findContours(eye_thresh, all_contours, CV_RETR_LIST, CV_CHAIN_APPROX_SIMPLE);
+    findContours(eye_thresh, all_contours, RETR_LIST, CHAIN_APPROX_SIMPLE);
 
     // Only save small ones (assumed to be spec.s)
     for (int i=0; i<all_contours.size(); i++){
@@ -55,14 +132,70 @@ void erase_specular(Mat eye_grey) {
     drawContours(small_contours_mask, contours, -1, 255, -1);
     dilate(small_contours_mask, small_contours_mask, ERASE_SPEC_KERNEL);
 
-    // Inpaint within contour bounds
-    inpaint(eye_grey, small_contours_mask, eye_grey, 2, INPAINT_TELEA);
+    if (!fast) {
+        // Inpaint within contour bounds
+        inpaint(eye_grey, small_contours_mask, eye_grey, 2, INPAINT_TELEA);
+        return;
+    }
+
+    // Clamp each specularity to the median of the unmasked pixels around it that are below the
+    // threshold. The margin covers the dilation of the mask.
+    const Rect image_rect(0, 0, eye_grey.cols, eye_grey.rows);
+    for (int i = 0; i < contours.size(); i++) {
+        Rect around = boundingRect(contours[i]);
+        around = Rect(around.x - SPECULAR_CLAMP_MARGIN, around.y - SPECULAR_CLAMP_MARGIN,
+                      around.width + 2 * SPECULAR_CLAMP_MARGIN,
+                      around.height + 2 * SPECULAR_CLAMP_MARGIN) & image_rect;
+
+        int hist[256] = {0};
+        int count = 0;
+        for (int y = around.y; y < around.y + around.height; ++y) {
+            const uchar* eye_p = eye_grey.ptr<uchar>(y);
+            const uchar* mask_p = small_contours_mask.ptr<uchar>(y);
+            for (int x = around.x; x < around.x + around.width; ++x) {
+                if (mask_p[x] == 0 && eye_p[x] <= thresh) {
+                    hist[eye_p[x]]++;
+                    count++;
+                }
+            }
+        }
+        if (count == 0)
+            continue;
+        int median = 0;
+        int seen = hist[0];
+        while (2 * seen < count)
+            seen += hist[++median];
+
+        for (int y = around.y; y < around.y + around.height; ++y) {
+            uchar* eye_p = eye_grey.ptr<uchar>(y);
+            const uchar* mask_p = small_contours_mask.ptr<uchar>(y);
+            for (int x = around.x; x < around.x + around.width; ++x) {
+                if (mask_p[x] != 0)
+                    eye_p[x] = (uchar) median;
+            }
+        }
+    }
 }
 
-Mat get_centermap(Mat& eye_grey) {
+// Darkness weight of every grey value, as computed by (255 - eye_grey) / DARKNESS_WEIGHT_SCALE.
+// Built with the same Mat expression so that the rounding matches exactly.
+static const Mat& darkness_weight_lut() {
+    static const Mat lut = [] {
+        Mat grey(1, 256, CV_8U);
+        for (int i = 0; i < 256; i++)
+            grey.at<uchar>(i) = (uchar) i;
+        Mat weights = (255 - grey) / DARKNESS_WEIGHT_SCALE;
+        return weights;
+    }();
+    return lut;
+}
+
+// Calculates the gradients of eye_grey, zeroes the weak ones and normalizes the rest.
+void get_gradients(const Mat& eye_grey, Mat& grad_x, Mat& grad_y) {
+    const int rows = eye_grey.rows;
+    const int cols = eye_grey.cols;
 
     // Calculate image gradients
-    Mat grad_x, grad_y;
     Sobel(eye_grey, grad_x, CV_32F, 1, 0, 5);
     Sobel(eye_grey, grad_y, CV_32F, 0, 1, 5);
 
@@ -73,63 +206,128 @@ Mat get_centermap(Mat& eye_grey) {
     meanStdDev(mags, mean, stddev);
     int mag_thresh = stddev.val[0] / 2 + mean.val[0];
 
-    // Threshold out gradients with mags which are too low
-    grad_x.setTo(0, mags < mag_thresh);
-    grad_y.setTo(0, mags < mag_thresh);
-
-    // Normalize gradients
-    grad_x = grad_x / (mags+1); // (+1 is hack to guard against div by 0)
-    grad_y = grad_y / (mags+1);
-
-    // Initialize 1d vectors of x and y indicies of Mat
-    vector<int> x_inds_vec, y_inds_vec;
-    for(int i = 0; i < eye_grey.size().width; i++)
-        x_inds_vec.push_back(i);
-    for(int i = 0; i < eye_grey.size().height; i++)
-        y_inds_vec.push_back(i);
-
-    // Repeat vectors to form indices Mats
-    Mat x_inds(x_inds_vec), y_inds(y_inds_vec);
-    x_inds = repeat(x_inds.t(), eye_grey.size().height, 1);
-    y_inds = repeat(y_inds, 1, eye_grey.size().width);
-    x_inds.convertTo(x_inds, CV_32F);	// Has to be float for arith. with dx, dy
-    y_inds.convertTo(y_inds, CV_32F);
-
-    // Set-up Mats for main loop
-    Mat ones = Mat::ones(x_inds.rows, x_inds.cols, CV_32F);	// for re-use with creating normalized disp. vecs
-    Mat darkness_weights = (255 - eye_grey) / DARKNESS_WEIGHT_SCALE;
+    // Threshold out gradients with mags which are too low, and normalize the rest
+    // (+1 is hack to guard against div by 0)
+    for (int y = 0; y < rows; ++y) {
+        float* grd_x_p = grad_x.ptr<float>(y);
+        float* grd_y_p = grad_y.ptr<float>(y);
+        const float* mag_p = mags.ptr<float>(y);
+        for (int x = 0; x < cols; ++x) {
+            if (mag_p[x] < mag_thresh) {
+                grd_x_p[x] = 0;
+                grd_y_p[x] = 0;
+            } else {
+                grd_x_p[x] = grd_x_p[x] / (mag_p[x] + 1);
+                grd_y_p[x] = grd_y_p[x] / (mag_p[x] + 1);
+            }
+        }
+    }
+}
+
+// A pixel with a gradient, and the darkness weight get_centermap gives it.
+struct GradientPoint {
+    float x, y, grad_x, grad_y, weight;
+};
+
+// Scratch buffers of the locator. Every JNI call owns one for the eyes it locates, so the buffers
+// grow once per call and are reused for all its eyes, and no thread-local storage is needed.
+struct LocatorScratch {
+    // Gradient pixels of the level being searched.
+    vector<GradientPoint> gradient_points;
+    // Copy of the eye ROI before blurring, kept for the coarse search while tracking is tried.
+    Mat unblurred;
+};
+
+// Normalized displacement vectors for every offset (dx, dy) from a possible center to a gradient
+// of a rows x cols centermap, stored at row dy + rows-1 and column cols-1 - dx. The zero offset
+// gets a zero vector, which is what OpenCV's Mat division gave for 0/0.
+struct DisplacementTable {
+    int rows, cols;
+    vector<float> unit_x, unit_y;
+};
+
+// Returns the displacement table of a rows x cols centermap. A table only depends on the size, so
+// it is built by the first call for its size, shared by all threads and never changed. The
+// exhaustive search only runs at fastSize_width, so only a few sizes ever occur.
+static const DisplacementTable& displacement_table(int rows, int cols) {
+    static mutex tables_lock;
+    // A deque never moves its elements, so the returned references stay valid.
+    static deque<DisplacementTable> tables;
+    lock_guard<mutex> guard(tables_lock);
+    for (const DisplacementTable& table : tables) {
+        if (table.rows == rows && table.cols == cols)
+            return table;
+    }
+    tables.emplace_back();
+    DisplacementTable& table = tables.back();
+    table.rows = rows;
+    table.cols = cols;
+    const int table_width = 2 * cols - 1;
+    table.unit_x.resize(table_width * (2 * rows - 1));
+    table.unit_y.resize(table.unit_x.size());
+    for (int dy = 1 - rows; dy < rows; ++dy) {
+        for (int dx = 1 - cols; dx < cols; ++dx) {
+            int i = (dy + rows - 1) * table_width + cols - 1 - dx;
+            float mag = sqrt((float) (dx * dx + dy * dy));
+            table.unit_x[i] = mag == 0 ? 0 : dx / mag;
+            table.unit_y[i] = mag == 0 ? 0 : dy / mag;
+        }
+    }
+    return table;
+}
+
+Mat get_centermap(Mat& eye_grey) {
+    const int rows = eye_grey.rows;
+    const int cols = eye_grey.cols;
+
+    Mat grad_x, grad_y;
+    get_gradients(eye_grey, grad_x, grad_y);
+
+    const DisplacementTable& table = displacement_table(rows, cols);
+    const vector<float>& unit_x = table.unit_x;
+    const vector<float>& unit_y = table.unit_y;
+    const int table_width = 2 * cols - 1;
+
+    const uchar* darkness_weights = darkness_weight_lut().ptr<uchar>(0);
     Mat accumulator = Mat::zeros(eye_grey.size(), CV_32F);
-    Mat diffs, dx, dy;
 
-    // Loop over all pixels, testing each as a possible center
-    for(int y = 0; y < eye_grey.rows; ++y) {
+    // Loop over all pixels with a gradient, and add its agreement with the displacement to every
+    // possible center
+    for(int y = 0; y < rows; ++y) {
 
         // Get pointers for each row
-        float* grd_x_p = grad_x.ptr<float>(y);
-        float* grd_y_p = grad_y.ptr<float>(y);
-        uchar* d_w_p = darkness_weights.ptr<uchar>(y);
-
-        for(int x = 0; x < eye_grey.cols; ++x) {
+        const float* grd_x_p = grad_x.ptr<float>(y);
+        const float* grd_y_p = grad_y.ptr<float>(y);
+        // The weight pointer only advances for pixels with a gradient, so the k-th gradient of a row
+        // is weighted by the darkness of the k-th pixel of that row. Kept as is to keep the output
+        // unchanged.
+        const uchar* d_w_p = eye_grey.ptr<uchar>(y);
 
-            // Deref and increment pointers
-            float grad_x_val = *grd_x_p++;
-            float grad_y_val = *grd_y_p++;
+        for(int x = 0; x < cols; ++x) {
+            float grad_x_val = grd_x_p[x];
+            float grad_y_val = grd_y_p[x];
 
             // Skip if no gradient
             if(grad_x_val == 0 && grad_y_val == 0)
                 continue;
 
-            dx = ones * x - x_inds;
-            dy = ones * y - y_inds;
-
-            magnitude(dx, dy, mags);
-            dx = dx / mags;
-            dy = dy / mags;
-
-            diffs = (dx * grad_x_val + dy * grad_y_val) * *d_w_p++;
-            diffs.setTo(0, diffs < 0);
+            float weight = darkness_weights[*d_w_p++];
+            // A zero weight adds nothing to any center
+            if (weight == 0)
+                continue;
 
-            accumulator = accumulator + diffs;
+            for (int cy = 0; cy < rows; ++cy) {
+                // Displacements from the centers of row cy to this pixel, indexed by cx. The loop
+                // has no branch and walks the table forwards, so that it vectorizes.
+                int base = (y - cy + rows - 1) * table_width + cols - 1 - x;
+                const float* dx_p = &unit_x[base];
+                const float* dy_p = &unit_y[base];
+                float* acc_p = accumulator.ptr<float>(cy);
+                for (int cx = 0; cx < cols; ++cx) {
+                    float diff = (dx_p[cx] * grad_x_val + dy_p[cx] * grad_y_val) * weight;
+                    acc_p[cx] += diff > 0 ? diff : 0;
+                }
+            }
         }
     }
 
@@ -141,130 +339,352 @@ Mat get_centermap(Mat& eye_grey) {
     return accumulator;
 }
 
-Point find_eye_center(Mat eye_grey){
+// Collects the pixels of eye_grey that have a gradient into points.
+void get_gradient_points(const Mat& eye_grey, vector<GradientPoint>& points) {
+    Mat grad_x, grad_y;
+    get_gradients(eye_grey, grad_x, grad_y);
+
+    const uchar* darkness_weights = darkness_weight_lut().ptr<uchar>(0);
+    points.clear();
+    for (int y = 0; y < eye_grey.rows; ++y) {
+        const float* grd_x_p = grad_x.ptr<float>(y);
+        const float* grd_y_p = grad_y.ptr<float>(y);
+        // Same weighting as in get_centermap, so that all levels agree
+        const uchar* d_w_p = eye_grey.ptr<uchar>(y);
+        for (int x = 0; x < eye_grey.cols; ++x) {
+            if (grd_x_p[x] == 0 && grd_y_p[x] == 0)
+                continue;
+            GradientPoint point = {(float) x, (float) y, grd_x_p[x], grd_y_p[x],
+                                   (float) darkness_weights[*d_w_p++]};
+            points.push_back(point);
+        }
+    }
+}
 
-    Mat eye_grey_small;
+// The value get_centermap accumulates for the center (cx, cy), before normalization.
+float center_score(const vector<GradientPoint>& points, float cx, float cy) {
+    float score = 0;
+    for (const GradientPoint& p : points) {
+        float dx = p.x - cx;
+        float dy = p.y - cy;
+        float mag = sqrt(dx * dx + dy * dy);
+        if (mag == 0)
+            continue;
+        float diff = (dx / mag * p.grad_x + dy / mag * p.grad_y) * p.weight;
+        if (diff > 0)
+            score += diff;
+    }
+    return score;
+}
+
+// Offset of the peak of the parabola through three equally spaced scores, within half a pixel.
+float parabola_peak(float before, float at, float after) {
+    float curvature = before - 2 * at + after;
+    if (curvature >= 0)
+        return 0;
+    return std::max(-0.5f, std::min(0.5f, 0.5f * (before - after) / curvature));
+}
+
+// Scores the candidates of level within radius of start. Returns the best score, and leaves its
+// position in best_loc. If scores is given, it receives the (2*radius+1)^2 scores of the window,
+// with -1 for candidates outside the level.
+float search_window(const vector<GradientPoint>& points, const Mat& level, Point start, int radius,
+                    Point& best_loc, float* scores = NULL) {
+    best_loc = start;
+    float best = -1;
+    for (int y = start.y - radius; y <= start.y + radius; ++y) {
+        for (int x = start.x - radius; x <= start.x + radius; ++x) {
+            float score = -1;
+            if (x >= 0 && y >= 0 && x < level.cols && y < level.rows)
+                score = center_score(points, x, y);
+            if (scores != NULL)
+                *scores++ = score;
+            if (score > best) {
+                best = score;
+                best_loc = Point(x, y);
+            }
+        }
+    }
+    return best;
+}
+
+// Moves the peak best_loc with the given score to sub-pixel accuracy.
+Point2f subpixel_peak(const vector<GradientPoint>& points, Point best_loc, float best) {
+    Point2f center = best_loc;
+    center.x += parabola_peak(center_score(points, best_loc.x - 1, best_loc.y), best,
+                              center_score(points, best_loc.x + 1, best_loc.y));
+    center.y += parabola_peak(center_score(points, best_loc.x, best_loc.y - 1), best,
+                              center_score(points, best_loc.x, best_loc.y + 1));
+    return center;
+}
+
+// Finds the best center of level within PYRAMID_REFINE_RADIUS of estimate, optionally to sub-pixel
+// accuracy.
+Point2f refine_center(const Mat& level, Point2f estimate, bool subpixel, LocatorScratch& scratch) {
+    vector<GradientPoint>& gradient_points = scratch.gradient_points;
+    get_gradient_points(level, gradient_points);
+
+    Point start(cvRound(estimate.x), cvRound(estimate.y));
+    Point best_loc;
+    float best = search_window(gradient_points, level, start, PYRAMID_REFINE_RADIUS, best_loc);
+    return subpixel ? subpixel_peak(gradient_points, best_loc, best) : Point2f(best_loc);
+}
 
-   // Resize the image to a constant fast size, only downscales --Nuri
+// Peak-to-second-peak confidence of the peak of scores, see PEAK_EXCLUSION_RADIUS.
+float peak_confidence(const Mat& scores, Point peak) {
+    float peak_value = scores.at<float>(peak);
+    if (peak_value <= 0)
+        return 0;
+    float second = 0;
+    for (int y = 0; y < scores.rows; ++y) {
+        for (int x = 0; x < scores.cols; ++x) {
+            float value = scores.at<float>(y, x);
+            if (value <= second || (std::abs(x - peak.x) <= PEAK_EXCLUSION_RADIUS
+                                    && std::abs(y - peak.y) <= PEAK_EXCLUSION_RADIUS))
+                continue;
+            bool local_max = true;
+            for (int ny = std::max(y - 1, 0); ny <= std::min(y + 1, scores.rows - 1); ++ny)
+                for (int nx = std::max(x - 1, 0); nx <= std::min(x + 1, scores.cols - 1); ++nx)
+                    local_max = local_max && scores.at<float>(ny, nx) <= value;
+            if (local_max)
+                second = value;
+        }
+    }
+    return 1 - second / peak_value;
+}
+
+// Looks for the center of the full size eye_grey near the previous center prior. Returns false if
+// it is not found there with enough confidence, and the full search has to run.
+bool track_center(const Mat& eye_grey, Point2f prior, Point2f& center, float& confidence,
+                  LocatorScratch& scratch) {
+    vector<GradientPoint>& gradient_points = scratch.gradient_points;
+    get_gradient_points(eye_grey, gradient_points);
+    float total_weight = 0;
+    for (const GradientPoint& p : gradient_points)
+        total_weight += p.weight;
+    if (total_weight == 0)
+        return false;
+
+    const int window_size = 2 * TRACKING_WINDOW_RADIUS + 1;
+    float window_scores[window_size * window_size];
+    Point start(cvRound(prior.x), cvRound(prior.y));
+    Point best_loc;
+    float best = search_window(gradient_points, eye_grey, start, TRACKING_WINDOW_RADIUS, best_loc,
+                               window_scores);
+    if (std::abs(best_loc.x - start.x) == TRACKING_WINDOW_RADIUS
+        || std::abs(best_loc.y - start.y) == TRACKING_WINDOW_RADIUS
+        || best < TRACKING_MIN_CONFIDENCE * total_weight)
+        return false;
+
+    Point window_offset(TRACKING_WINDOW_RADIUS - start.x, TRACKING_WINDOW_RADIUS - start.y);
+    confidence = peak_confidence(Mat(window_size, window_size, CV_32F, window_scores),
+                                 best_loc + window_offset);
+    center = subpixel_peak(gradient_points, best_loc, best);
+    return true;
+}
+
+// Locates the pupil in the eye ROI. prior is the previous pupil in ROI coordinates, or (-1,-1) if
+// there is none. Also returns the confidence of the center.
+Point2f find_eye_center(Mat eye_grey, Point2f prior, float& confidence, LocatorScratch& scratch){
+
+    // Resize the image to a constant fast size, only downscales --Nuri
     float scale = 1.0f;
-    if(eye_grey.size().width > fastSize_width) {
+    if(eye_grey.size().width > fastSize_width)
         scale = fastSize_width / (float) eye_grey.size().width; // fastSize == 40
-        resize(eye_grey, eye_grey_small, Size(0,0), scale, scale); // resizing to width to 40 while keeping the WxH ratio the same.
-    } else{
-        eye_grey_small  = eye_grey;
-    }
 
+    // The coarse search downscales the unblurred pixels, which the blur overwrites, so keep a copy
+    // of them in case tracking fails. Without downscaling, it shares the blurred pixels.
+    if (scale < 1.0f)
+        eye_grey.copyTo(scratch.unblurred);
+
+    chrono::steady_clock::time_point start = chrono::steady_clock::now();
     GaussianBlur(eye_grey,eye_grey,Size(5,5),0);
+    record_stage(STAGE_BLUR, start);
+
+    Point2f center;
+    if (TEMPORAL_TRACKING && prior.x >= 0 && prior.y >= 0 && prior.x < eye_grey.cols
+        && prior.y < eye_grey.rows) {
+        start = chrono::steady_clock::now();
+        bool tracked = track_center(eye_grey, prior, center, confidence, scratch);
+        record_stage(STAGE_TRACK, start);
+        if (tracked)
+            return center;
+    }
+
+    start = chrono::steady_clock::now();
+    Mat eye_grey_small;
+    if (scale < 1.0f)
+        resize(scratch.unblurred, eye_grey_small, Size(0,0), scale, scale); // resizing to width to 40 while keeping the WxH ratio the same.
+    else
+        eye_grey_small = eye_grey;
+    record_stage(STAGE_RESIZE, start);
 
     // Create centermap
+    start = chrono::steady_clock::now();
     Mat centermap = get_centermap(eye_grey_small);
 
     // Find position of max value in small-size centermap
     Point maxLoc;
     minMaxLoc(centermap, NULL, NULL, NULL, &maxLoc);
+    Mat scores;
+    centermap.convertTo(scores, CV_32F);
+    confidence = peak_confidence(scores, maxLoc);
+    record_stage(STAGE_CENTERMAP, start);
+
+    if (!PYRAMID_SEARCH) {
+        // Return re-scaled center to full size
+        return maxLoc * (1/scale);
+    }
 
-    // Return re-scaled center to full size
-    return maxLoc * (1/scale);
+    // Refine the coarse center at twice the resolution until the full size is reached, and to
+    // sub-pixel accuracy there
+    start = chrono::steady_clock::now();
+    center = maxLoc;
+    float level_scale = scale;
+    Mat level;
+    do {
+        float next_scale = std::min(level_scale * 2, 1.0f);
+        if (next_scale < 1.0f)
+            resize(eye_grey, level, Size(0,0), next_scale, next_scale);
+        else
+            level = eye_grey;
+        center = refine_center(level, center * (next_scale / level_scale), next_scale == 1.0f,
+                               scratch);
+        level_scale = next_scale;
+    } while (level_scale < 1.0f);
+    record_stage(STAGE_REFINE, start);
+    return center;
 }
 
-extern "C" {
-JNIEXPORT jfloatArray JNICALL
-Java_com_google_android_gms_samples_vision_face_googlyeyes_GooglyEyesActivity_rightEyeFromJNI(
-        JNIEnv *jniEnv,
-        jobject thiz/* this */, jbyteArray s_yuv, jfloat rightX, jfloat rightY,  jint height, jint width, jfloat distanceBetweenEyes) {
-
-    jbyte* _s_yuv = jniEnv->GetByteArrayElements(s_yuv, 0);
-
-    // This gives us the grayscale image without any conversion
-    Mat _srcImg = Mat(height ,width, CV_8UC1, (unsigned char*) _s_yuv);
-    // Mobile Vision detector rotates the frames 270 degree counterclockwise. This is to compensate.
-    rotate(_srcImg, _srcImg, ROTATE_90_COUNTERCLOCKWISE);
+// Rotates the window around eyeROI of the camera frame by 90 degree counterclockwise into window, and
+// returns the view of eyeROI within it. eyeROI is in the rotated frame, which is frame.rows wide and
+// frame.cols high, and must lie inside it. The window extends ROI_FILTER_PADDING beyond eyeROI where
+// the frame allows, so filtering the view gives the same pixels as filtering eyeROI of the whole
+// rotated frame.
+Mat rotate_eye_window(const Mat& frame, Rect eyeROI, Mat& window) {
+    Rect padded = Rect(eyeROI.x - ROI_FILTER_PADDING, eyeROI.y - ROI_FILTER_PADDING,
+                       eyeROI.width + 2 * ROI_FILTER_PADDING, eyeROI.height + 2 * ROI_FILTER_PADDING)
+                  & Rect(0, 0, frame.rows, frame.cols);
+    // Pixel (r, c) of the rotated frame is pixel (c, width-1-r) of the camera frame. Instead of
+    // rotating the whole frame, map the window back and only rotate that. This also leaves the
+    // shared frame untouched.
+    Rect frameROI = Rect(frame.cols - padded.y - padded.height, padded.x, padded.height, padded.width);
+    rotate(frame(frameROI), window, ROTATE_90_COUNTERCLOCKWISE);
+    return window(Rect(eyeROI.x - padded.x, eyeROI.y - padded.y, eyeROI.width, eyeROI.height));
+}
 
+// Locates the pupil of one eye in the (unrotated) camera frame and writes the PUPIL_STRIDE fields
+// of its result. The position is (0,0) unless the status is STATUS_FOUND. If hasPrior, the search
+// starts from the previous pupil position (priorX, priorY). fastSpecular selects the fast specular
+// suppression over inpainting.
+void locate_pupil(const Mat& _srcImg, float eyeX, float eyeY, float distanceBetweenEyes,
+                  bool hasPrior, float priorX, float priorY, bool fastSpecular, float* result,
+                  LocatorScratch& scratch) {
+    chrono::steady_clock::time_point start = chrono::steady_clock::now();
+    int height = _srcImg.rows;
+    int width = _srcImg.cols;
+
+    // Mobile Vision detector rotates the frames 270 degree counterclockwise, so the eye positions
+    // are in the frame rotated 90 degree counterclockwise, which is height wide and width high.
     int eyeWidth = EYE_ROI_PROPORTION_WIDTH * distanceBetweenEyes;
     int eyeHeight = EYE_ROI_PROPORTION_HEIGHT * distanceBetweenEyes;
-    Rect eyeROI = Rect(int(rightX) - (eyeWidth/2), int(rightY) - (eyeHeight*3)/5, eyeWidth, eyeHeight);
+    Rect eyeROI = Rect(int(eyeX) - (eyeWidth/2), int(eyeY) - (eyeHeight*3)/5, eyeWidth, eyeHeight);
 
     float coordX, coordY;
-    // checks the box is inside the image region
-    if (0 <= eyeROI.x && 0 <= eyeROI.width && eyeROI.x + eyeROI.width <= _srcImg.cols
-        && 0 <= eyeROI.y && 0 <= eyeROI.height && eyeROI.y + eyeROI.height <= _srcImg.rows){
-
-       equalizeHist(_srcImg(eyeROI), _srcImg(eyeROI));
-        erase_specular(_srcImg(eyeROI));
-
-//      runs the algorithm
-        Point temp = find_eye_center(_srcImg(eyeROI));
+    float confidence = 0.0f;
+    int status;
+    // checks the box is inside the (rotated) image region
+    if (0 <= eyeROI.x && 0 <= eyeROI.width && eyeROI.x + eyeROI.width <= height
+        && 0 <= eyeROI.y && 0 <= eyeROI.height && eyeROI.y + eyeROI.height <= width){
+
+        Mat window;
+        chrono::steady_clock::time_point stage_start = chrono::steady_clock::now();
+        Mat eye = rotate_eye_window(_srcImg, eyeROI, window);
+        record_stage(STAGE_ROTATE, stage_start);
+
+        stage_start = chrono::steady_clock::now();
+        equalizeHist(eye, eye);
+        record_stage(STAGE_EQUALIZE, stage_start);
+        stage_start = chrono::steady_clock::now();
+        erase_specular(eye, fastSpecular);
+        record_stage(STAGE_SPECULAR, stage_start);
+
+        // runs the algorithm, starting from the previous pupil if it is known
+        Point2f prior(-1, -1);
+        if (hasPrior)
+            prior = Point2f(priorX - eyeROI.x, priorY - eyeROI.y);
+        Point2f temp = find_eye_center(eye, prior, confidence, scratch);
 
         if(temp.x  <= 1 || temp.y <= 1 || temp.x  >= eyeWidth -1 || temp.y >= eyeHeight -1){
             //this means the detection failed. Sending (0,0) makes sure that the last detected position is used instead.
             coordX = 0.0f;
             coordY = 0.0f;
+            confidence = 0.0f;
+            status = STATUS_FAILED;
         } else{
             coordX = temp.x + eyeROI.tl().x;
             coordY = temp.y + eyeROI.tl().y;
+            status = STATUS_FOUND;
         }
 
-    } else{ // only to show that there is something wrong
-        coordX = 30.0F; coordY = 30.0F;
+    } else{
+        coordX = 0.0f; coordY = 0.0f;
+        status = STATUS_OUT_OF_BOUNDS;
     }
-    jfloat arrayDummy[] = {coordX, coordY };
-
-    jfloatArray result = jniEnv->NewFloatArray(2);
-    jniEnv->SetFloatArrayRegion (result, 0, 2, arrayDummy);
-    jniEnv->ReleaseByteArrayElements(s_yuv, _s_yuv, 0);
-    return result;
-}
+    result[PUPIL_X] = coordX;
+    result[PUPIL_Y] = coordY;
+    result[PUPIL_CONFIDENCE] = confidence;
+    result[PUPIL_STATUS] = status;
+    chrono::duration<float, micro> elapsed = chrono::steady_clock::now() - start;
+    result[PUPIL_MICROS] = elapsed.count();
 }
 
 extern "C" {
-JNIEXPORT jfloatArray JNICALL
-Java_com_google_android_gms_samples_vision_face_googlyeyes_GooglyEyesActivity_leftEyeFromJNI(
+// Batched entry point: locates the pupils of count eye ROIs of one frame in a single call. eyes
+// holds the EYE_STRIDE fields of each ROI, and pupils receives the PUPIL_STRIDE fields of each
+// result. The position is (0,0) unless the status is STATUS_FOUND. fastSpecular selects the fast
+// specular suppression over inpainting.
+JNIEXPORT void JNICALL
+Java_com_google_android_gms_samples_vision_face_googlyeyes_GooglyEyesActivity_locatePupilsFromJNI(
         JNIEnv *jniEnv,
-        jobject thiz/* this */, jbyteArray s_yuv, jfloat leftX, jfloat leftY, jint height, jint width, jfloat distanceBetweenEyes) {
-
-    jbyte* _s_yuv = jniEnv->GetByteArrayElements(s_yuv, 0);
-
-    // This gives us the grayscale image without any conversion
-    Mat _srcImg = Mat(height ,width, CV_8UC1, (unsigned char*) _s_yuv);
-    // Mobile Vision detector rotates 270 degree. This is to compensate.
-    rotate(_srcImg, _srcImg, ROTATE_90_COUNTERCLOCKWISE);
-
-    int eyeWidth = EYE_ROI_PROPORTION_WIDTH * distanceBetweenEyes;
-    int eyeHeight = EYE_ROI_PROPORTION_HEIGHT * distanceBetweenEyes;
-    Rect eyeROI = Rect(int(leftX) - (eyeWidth/2), int(leftY) - (eyeHeight*3)/5, eyeWidth, eyeHeight);
-
-    float coordX, coordY;
-    // checks the box is inside the image region
-    if (0 <= eyeROI.x && 0 <= eyeROI.width && eyeROI.x + eyeROI.width <= _srcImg.cols
-        && 0 <= eyeROI.y && 0 <= eyeROI.height && eyeROI.y + eyeROI.height <= _srcImg.rows){
-
-        equalizeHist(_srcImg(eyeROI), _srcImg(eyeROI));
-        erase_specular(_srcImg(eyeROI));
-
-        // runs the algorithm
-        Point temp = find_eye_center(_srcImg(eyeROI));
-
-        if(temp.x  <= 1 || temp.y <= 1 || temp.x  >= eyeWidth -1 || temp.y >= eyeHeight -1){
-            //this means the detection failed. Sending (0,0) makes sure that the last detected position is used instead.
-            coordX = 0.0f;
-            coordY = 0.0f;
-        } else{
-            coordX = temp.x + eyeROI.tl().x;
-            coordY = temp.y + eyeROI.tl().y;
+        jobject thiz/* this */, jobject frame, jint height, jint width, jfloatArray eyes, jint count, jfloatArray pupils,
+        jboolean fastSpecular) {
+
+    void* frameData = jniEnv->GetDirectBufferAddress(frame);
+    if (frameData == NULL) {
+        jniEnv->ThrowNew(jniEnv->FindClass("java/lang/IllegalArgumentException"),
+                         "frame must be a direct ByteBuffer");
+        return;
+    }
+    Mat _srcImg = Mat(height ,width, CV_8UC1, frameData);
+
+    // The ROIs are copied in and out in chunks, so any number of eyes works without allocating.
+    jfloat eyeChunk[MAX_BATCH_EYES * EYE_STRIDE];
+    jfloat pupilChunk[MAX_BATCH_EYES * PUPIL_STRIDE];
+    LocatorScratch scratch;
+    for (int first = 0; first < count; first += MAX_BATCH_EYES) {
+        int n = std::min(count - first, MAX_BATCH_EYES);
+        jniEnv->GetFloatArrayRegion(eyes, first * EYE_STRIDE, n * EYE_STRIDE, eyeChunk);
+        for (int i = 0; i < n; i++) {
+            jfloat* eye = eyeChunk + i * EYE_STRIDE;
+            locate_pupil(_srcImg, eye[EYE_X], eye[EYE_Y], eye[EYE_DISTANCE],
+                         eye[EYE_HAS_PRIOR] != 0.0F, eye[EYE_PRIOR_X], eye[EYE_PRIOR_Y],
+                         fastSpecular == JNI_TRUE, pupilChunk + i * PUPIL_STRIDE, scratch);
         }
-
-    } else{ // only to show that there is something wrong
-        coordX = 50.0F; coordY = 50.0F;
+        jniEnv->SetFloatArrayRegion(pupils, first * PUPIL_STRIDE, n * PUPIL_STRIDE, pupilChunk);
     }
-    jfloat arrayDummy[] = {coordX, coordY };
-
-    jfloatArray result = jniEnv->NewFloatArray(2);
-    jniEnv->SetFloatArrayRegion (result, 0, 2, arrayDummy);
-    jniEnv->ReleaseByteArrayElements(s_yuv, _s_yuv, 0);
-    return result;
 }
-
 }
+// Returns the stage counters block as a direct ByteBuffer of STAGE_COUNT * COUNTER_STRIDE int64s in
+// native byte order. The block lives as long as the library, so the buffer stays valid.
+extern "C"
+JNIEXPORT jobject JNICALL
+Java_com_google_android_gms_samples_vision_face_googlyeyes_GooglyEyesActivity_stageCountersFromJNI(
+        JNIEnv *jniEnv,
+        jobject /* this */) {
+    return jniEnv->NewDirectByteBuffer(stage_counters, sizeof(stage_counters));
+}
+
 extern "C"
 JNIEXPORT jstring JNICALL
 Java_com_google_android_gms_samples_vision_face_googlyeyes_GooglyEyesActivity_stringFromJNI(
@@ -0,0 +1,1427 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.face.googlyeyes;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pure Java port of the means-of-gradients pupil locator in native-lib.cpp.<p>
+ *
+ * Each step mirrors the OpenCV call it replaces (equalizeHist, the erase_specular pipeline, the
+ * resize in find_eye_center, Sobel and get_centermap), including OpenCV's fixed-point rounding and
+ * reflected borders, so the results match the native backend.  Like the native code, the filters of
+ * the eye ROI read the padding of the frame around it.  Specular contours are the outer borders of
+ * bright blobs and the borders of the holes in them, as findContours with CV_RETR_LIST finds them,
+ * filled even-odd like drawContours; a small hole in a large bright area is erased too.
+ * EyeCenterLocatorTest compares the results with goldens of the native backend.<p>
+ *
+ * All buffers are primitive arrays that grow with the largest ROI seen and are then reused, so a
+ * call does not allocate.  Instances are not thread safe; use one per worker thread.
+ */
+final class EyeCenterLocator {
+    private static final int FAST_SIZE_WIDTH = 30;
+    private static final int DARKNESS_WEIGHT_SCALE = 100;
+    private static final float EYE_ROI_PROPORTION_WIDTH = 0.40f;
+    private static final float EYE_ROI_PROPORTION_HEIGHT = 0.30f;
+    private static final int INPAINT_RADIUS = 2;
+    private static final boolean PYRAMID_SEARCH = true;
+    private static final int PYRAMID_REFINE_RADIUS = 2;
+    private static final int SPECULAR_CLAMP_MARGIN = 4;
+    private static final boolean TEMPORAL_TRACKING = true;
+    private static final int TRACKING_WINDOW_RADIUS = 3;
+    private static final float TRACKING_MIN_CONFIDENCE = 0.2f;
+    private static final int PEAK_EXCLUSION_RADIUS = 2;
+    // As ROI_FILTER_PADDING: the eye ROI is copied with this margin of the rotated frame around it,
+    // which the filters read like OpenCV does on a view.
+    private static final int ROI_FILTER_PADDING = 2;
+
+    // getStructuringElement(MORPH_ELLIPSE, Size(5, 5)), as the first and last column of each row.
+    private static final int[] ELLIPSE_FIRST = {2, 0, 0, 0, 2};
+    private static final int[] ELLIPSE_LAST = {2, 4, 4, 4, 2};
+
+    // Neighbours in counterclockwise order, starting east, as (row, column) offsets.
+    private static final int[] DIR_Y = {0, -1, -1, -1, 0, 1, 1, 1};
+    private static final int[] DIR_X = {1, 1, 0, -1, -1, -1, 0, 1};
+
+    // Inpainting flags, as in OpenCV's inpaint.
+    private static final byte KNOWN = 0;
+    private static final byte BAND = 1;
+    private static final byte INSIDE = 2;
+    private static final byte CHANGE = 3;
+
+    // Whether erase_specular clamps specularities instead of inpainting them.
+    private final boolean mFastSpecular;
+
+    private final int[] mHistogram = new int[256];
+    private final int[] mLut = new int[256];
+    private final int[] mDarknessWeights = new int[256];
+
+    // The eye ROI with the padding around it, as the native rotate_eye_window copies it, and the
+    // position of the ROI within it.
+    private int[] mWindow = new int[0];
+    private int mWindowWidth;
+    private int mWindowHeight;
+    private int mViewX;
+    private int mViewY;
+
+    // Grey images of the eye ROI, its unblurred and downscaled copies and scratch space.
+    private int[] mEye = new int[0];
+    private int[] mUnblurred = new int[0];
+    private int[] mSmall = new int[0];
+    private int[] mLevel = new int[0];
+    private int[] mTemp = new int[0];
+    private int[] mMask = new int[0];
+    private int[] mStack = new int[0];
+    // Bounding boxes of the specular contours as (minX, minY, maxX, maxY).
+    private int[] mContourBoxes = new int[0];
+
+    // Regions of the thresholded ROI, see labelRegions(): the region of every pixel, and the parent,
+    // first pixel, bounding box, drawn flag and even-odd fill parity of every region.
+    private int[] mRegions = new int[0];
+    private int[] mRegionParent = new int[0];
+    private int[] mRegionStart = new int[0];
+    private int[] mRegionBoxes = new int[0];
+    private int[] mRegionDrawn = new int[0];
+    private int[] mRegionParity = new int[0];
+
+    private float[] mGradX = new float[0];
+    private float[] mGradY = new float[0];
+    private float[] mAccumulator = new float[0];
+    private int[] mRowTemp = new int[0];
+
+    // Normalized displacement vectors, see getCentermap().
+    private float[] mUnitX = new float[0];
+    private float[] mUnitY = new float[0];
+    private int mTableRows;
+    private int mTableCols;
+
+    // Padded inpainting state and its priority queue.
+    private byte[] mFlags = new byte[0];
+    private byte[] mRing = new byte[0];
+    private float[] mDistance = new float[0];
+    private float[] mHeapKeys = new float[0];
+    private int[] mHeapIndices = new int[0];
+    private int mHeapSize;
+
+    // Gradient pixels of a pyramid level, see getGradientPoints().
+    private float[] mPointX = new float[0];
+    private float[] mPointY = new float[0];
+    private float[] mPointGradX = new float[0];
+    private float[] mPointGradY = new float[0];
+    private float[] mPointWeight = new float[0];
+    private int mPointCount;
+    private final float[] mWindowScores =
+            new float[(2 * TRACKING_WINDOW_RADIUS + 1) * (2 * TRACKING_WINDOW_RADIUS + 1)];
+
+    // Result of findEyeCenter() and refineCenter().
+    private float mCenterX;
+    private float mCenterY;
+    private float mConfidence;
+
+    //==============================================================================================
+    // Methods
+    //==============================================================================================
+
+    /**
+     * @param fastSpecular whether to clamp specularities to the median of the dark pixels around
+     *                     them, or to inpaint them, like the fastSpecular argument of the native
+     *                     locator.
+     */
+    EyeCenterLocator(boolean fastSpecular) {
+        mFastSpecular = fastSpecular;
+        for (int i = 0; i < 256; ++i) {
+            // (255 - eye_grey) / DARKNESS_WEIGHT_SCALE, rounded like saturate_cast<uchar>.
+            mDarknessWeights[i] = (int) Math.rint((255 - i) / (double) DARKNESS_WEIGHT_SCALE);
+        }
+    }
+
+    /**
+     * Same contract as the native batched locator: locates the pupils of count eye ROIs in the
+     * camera frame, which is width pixels wide and stored row by row.  Each ROI takes
+     * PupilExecutor.EYE_STRIDE floats of eyes, and each result record PupilExecutor.PUPIL_STRIDE
+     * floats of pupils.
+     */
+    void locatePupils(ByteBuffer frame, int height, int width, float[] eyes, int count,
+                      float[] pupils) {
+        for (int i = 0; i < count; ++i) {
+            int eye = i * PupilExecutor.EYE_STRIDE;
+            int pupil = i * PupilExecutor.PUPIL_STRIDE;
+            locatePupil(frame, height, width, eyes[eye + PupilExecutor.EYE_X],
+                    eyes[eye + PupilExecutor.EYE_Y], eyes[eye + PupilExecutor.EYE_DISTANCE],
+                    eyes[eye + PupilExecutor.EYE_HAS_PRIOR] != 0.0f,
+                    eyes[eye + PupilExecutor.EYE_PRIOR_X], eyes[eye + PupilExecutor.EYE_PRIOR_Y],
+                    pupils, pupil);
+        }
+    }
+
+    private void locatePupil(ByteBuffer frame, int height, int width, float eyeX, float eyeY,
+                             float distance, boolean hasPrior, float priorX, float priorY,
+                             float[] pupils, int offset) {
+        long start = System.nanoTime();
+        int status = locatePupil(frame, height, width, eyeX, eyeY, distance, hasPrior, priorX,
+                priorY);
+        boolean found = status == PupilExecutor.STATUS_FOUND;
+        pupils[offset + PupilExecutor.PUPIL_X] = found ? mCenterX : 0.0f;
+        pupils[offset + PupilExecutor.PUPIL_Y] = found ? mCenterY : 0.0f;
+        pupils[offset + PupilExecutor.PUPIL_CONFIDENCE] = found ? mConfidence : 0.0f;
+        pupils[offset + PupilExecutor.PUPIL_STATUS] = status;
+        pupils[offset + PupilExecutor.PUPIL_MICROS] = (System.nanoTime() - start) / 1000.0f;
+    }
+
+    /**
+     * Locates one pupil and returns its status.  If it was found, leaves its position in the
+     * rotated frame in mCenterX and mCenterY, and its confidence in mConfidence.
+     */
+    private int locatePupil(ByteBuffer frame, int height, int width, float eyeX, float eyeY,
+                            float distance, boolean hasPrior, float priorX, float priorY) {
+        // The eye positions are in the frame rotated 90 degree counterclockwise, which is height
+        // wide and width high.
+        int eyeWidth = (int) (EYE_ROI_PROPORTION_WIDTH * distance);
+        int eyeHeight = (int) (EYE_ROI_PROPORTION_HEIGHT * distance);
+        int roiX = (int) eyeX - eyeWidth / 2;
+        int roiY = (int) eyeY - (eyeHeight * 3) / 5;
+        if (roiX < 0 || eyeWidth <= 0 || roiX + eyeWidth > height
+                || roiY < 0 || eyeHeight <= 0 || roiY + eyeHeight > width) {
+            return PupilExecutor.STATUS_OUT_OF_BOUNDS;
+        }
+
+        // Pixel (r, c) of the rotated frame is pixel (c, width-1-r) of the camera frame.
+        int windowX = Math.max(roiX - ROI_FILTER_PADDING, 0);
+        int windowY = Math.max(roiY - ROI_FILTER_PADDING, 0);
+        mWindowWidth = Math.min(roiX + eyeWidth + ROI_FILTER_PADDING, height) - windowX;
+        mWindowHeight = Math.min(roiY + eyeHeight + ROI_FILTER_PADDING, width) - windowY;
+        mViewX = roiX - windowX;
+        mViewY = roiY - windowY;
+        int[] window = mWindow = ensure(mWindow, mWindowWidth * mWindowHeight);
+        for (int r = 0; r < mWindowHeight; ++r) {
+            int column = width - 1 - (windowY + r);
+            for (int c = 0; c < mWindowWidth; ++c) {
+                window[r * mWindowWidth + c] = frame.get((windowX + c) * width + column) & 0xFF;
+            }
+        }
+        int[] eye = mEye = ensure(mEye, eyeWidth * eyeHeight);
+        for (int r = 0; r < eyeHeight; ++r) {
+            System.arraycopy(window, (mViewY + r) * mWindowWidth + mViewX, eye, r * eyeWidth,
+                    eyeWidth);
+        }
+
+        equalizeHist(eye, eyeWidth * eyeHeight);
+        eraseSpecular(eye, eyeWidth, eyeHeight);
+        // Start from the previous pupil if it is known
+        if (hasPrior) {
+            findEyeCenter(eye, eyeWidth, eyeHeight, priorX - roiX, priorY - roiY);
+        } else {
+            findEyeCenter(eye, eyeWidth, eyeHeight, -1, -1);
+        }
+
+        if (mCenterX <= 1 || mCenterY <= 1 || mCenterX >= eyeWidth - 1
+                || mCenterY >= eyeHeight - 1) {
+            // the detection failed, the last detected position is used instead
+            return PupilExecutor.STATUS_FAILED;
+        }
+        mCenterX += roiX;
+        mCenterY += roiY;
+        return PupilExecutor.STATUS_FOUND;
+    }
+
+    /**
+     * OpenCV equalizeHist, in place.
+     */
+    private void equalizeHist(int[] image, int size) {
+        int[] hist = mHistogram;
+        for (int i = 0; i < 256; ++i) {
+            hist[i] = 0;
+        }
+        for (int i = 0; i < size; ++i) {
+            ++hist[image[i]];
+        }
+        int i = 0;
+        while (hist[i] == 0) {
+            ++i;
+        }
+        if (hist[i] == size) {
+            for (int p = 0; p < size; ++p) {
+                image[p] = i;
+            }
+            return;
+        }
+        float scale = 255.f / (size - hist[i]);
+        int sum = 0;
+        mLut[i] = 0;
+        for (++i; i < 256; ++i) {
+            sum += hist[i];
+            mLut[i] = saturateUchar(sum * scale);
+        }
+        for (int p = 0; p < size; ++p) {
+            image[p] = mLut[image[p]];
+        }
+    }
+
+    /**
+     * Port of erase_specular: suppresses small bright blobs by inpainting them, in place.
+     */
+    private void eraseSpecular(int[] eye, int w, int h) {
+        int size = w * h;
+        // Rather arbitrary decision on how large a specularity may be
+        int maxSpecContourArea = (w + h) / 2;
+
+        syncWindow(eye, w, h);
+        gaussianBlur5(mWindow, mWindowWidth, mWindowHeight, mViewX, mViewY, eye, w, h);
+
+        // Close to suppress eyelashes.  Like morphologyEx in place on the view, the erosion sees
+        // the dilated ROI but the original padding.
+        int[] temp = mTemp = ensure(mTemp, size);
+        syncWindow(eye, w, h);
+        morph(mWindow, mWindowWidth, mWindowHeight, mViewX, mViewY, temp, w, h, true);
+        syncWindow(temp, w, h);
+        morph(mWindow, mWindowWidth, mWindowHeight, mViewX, mViewY, eye, w, h, false);
+
+        // Compute thresh value (using of highest and lowest pixel values)
+        int min = 255;
+        int max = 0;
+        for (int i = 0; i < size; ++i) {
+            min = Math.min(min, eye[i]);
+            max = Math.max(max, eye[i]);
+        }
+        double thresh = (min + max) * 3 / 4.0;
+
+        // Threshold into temp, and find its contours like findContours with CV_RETR_LIST: the outer
+        // border of every bright blob and the border of every hole in one.
+        for (int i = 0; i < size; ++i) {
+            temp[i] = eye[i] > thresh ? 1 : 0;
+        }
+        int regionCount = labelRegions(temp, w, h);
+
+        // Only keep the small ones (assumed to be specularities).  A region is inside the contour
+        // of each of its ancestors, so drawContours fills it if an odd number of them is kept.
+        int contourCount = 0;
+        mContourBoxes = ensure(mContourBoxes, 4 * regionCount);
+        for (int r = 1; r < regionCount; ++r) {
+            int start = mRegionStart[r];
+            boolean blob = temp[start] != 0;
+            // A hole border starts at the blob pixel left of the first pixel of the hole
+            double area = blob ? contourArea(temp, w, h, start, false)
+                    : contourArea(temp, w, h, start - 1, true);
+            boolean drawn = area < maxSpecContourArea;
+            mRegionDrawn[r] = drawn ? 1 : 0;
+            mRegionParity[r] = mRegionParity[mRegionParent[r]] ^ mRegionDrawn[r];
+            if (drawn) {
+                // The border of a hole is one pixel outside of it
+                int grow = blob ? 0 : 1;
+                mContourBoxes[4 * contourCount] = mRegionBoxes[4 * r] - grow;
+                mContourBoxes[4 * contourCount + 1] = mRegionBoxes[4 * r + 1] - grow;
+                mContourBoxes[4 * contourCount + 2] = mRegionBoxes[4 * r + 2] + grow;
+                mContourBoxes[4 * contourCount + 3] = mRegionBoxes[4 * r + 3] + grow;
+                ++contourCount;
+            }
+        }
+        if (contourCount == 0) {
+            return;
+        }
+
+        // Draw the kept contours into the mask: the regions with an odd parity, and the border
+        // pixels of every kept contour.  The border pixels of a contour are the blob pixels that are
+        // 4-adjacent to the dark region on its other side.
+        int[] mask = mMask = ensure(mMask, size);
+        int[] regions = mRegions;
+        for (int y = 0; y < h; ++y) {
+            for (int x = 0; x < w; ++x) {
+                int p = y * w + x;
+                int region = regions[p];
+                boolean set = mRegionParity[region] != 0;
+                for (int d = 0; d < 8 && !set && temp[p] != 0; d += 2) {
+                    int yy = y + DIR_Y[d];
+                    int xx = x + DIR_X[d];
+                    boolean inside = yy >= 0 && yy < h && xx >= 0 && xx < w;
+                    if (inside && temp[yy * w + xx] != 0) {
+                        continue;
+                    }
+                    int dark = inside ? regions[yy * w + xx] : 0;
+                    // The dark region is either the one around the blob, or one of its holes
+                    int contour = dark == mRegionParent[region] ? region : dark;
+                    set = mRegionDrawn[contour] != 0;
+                }
+                mask[p] = set ? 255 : 0;
+            }
+        }
+        morph(mask, w, h, 0, 0, temp, w, h, true);
+        if (!mFastSpecular) {
+            inpaintTelea(eye, temp, w, h, INPAINT_RADIUS);
+            return;
+        }
+
+        // Clamp each specularity to the median of the unmasked pixels around it that are below the
+        // threshold.  The margin covers the dilation of the mask.  Where the boxes overlap, the
+        // last clamp wins, and findContours lists the contours in the reverse order it found them.
+        for (int b = contourCount - 1; b >= 0; --b) {
+            int minX = Math.max(0, mContourBoxes[4 * b] - SPECULAR_CLAMP_MARGIN);
+            int minY = Math.max(0, mContourBoxes[4 * b + 1] - SPECULAR_CLAMP_MARGIN);
+            int maxX = Math.min(w - 1, mContourBoxes[4 * b + 2] + SPECULAR_CLAMP_MARGIN);
+            int maxY = Math.min(h - 1, mContourBoxes[4 * b + 3] + SPECULAR_CLAMP_MARGIN);
+
+            int[] hist = mHistogram;
+            for (int i = 0; i < 256; ++i) {
+                hist[i] = 0;
+            }
+            int count = 0;
+            for (int y = minY; y <= maxY; ++y) {
+                for (int x = minX; x <= maxX; ++x) {
+                    int p = y * w + x;
+                    if (temp[p] == 0 && eye[p] <= thresh) {
+                        ++hist[eye[p]];
+                        ++count;
+                    }
+                }
+            }
+            if (count == 0) {
+                continue;
+            }
+            int median = 0;
+            int seen = hist[0];
+            while (2 * seen < count) {
+                seen += hist[++median];
+            }
+
+            for (int y = minY; y <= maxY; ++y) {
+                for (int x = minX; x <= maxX; ++x) {
+                    if (temp[y * w + x] != 0) {
+                        eye[y * w + x] = median;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Port of find_eye_center.  (priorX, priorY) is the previous pupil in ROI coordinates, or
+     * (-1,-1) if there is none.  Leaves the center in mCenterX and mCenterY, and its confidence in
+     * mConfidence.
+     */
+    private void findEyeCenter(int[] eye, int w, int h, float priorX, float priorY) {
+        // Resize the image to a constant fast size, only downscales
+        float scale = 1.0f;
+        if (w > FAST_SIZE_WIDTH) {
+            scale = FAST_SIZE_WIDTH / (float) w;
+        }
+
+        // The coarse search downscales the unblurred pixels, which the blur overwrites, so keep a
+        // copy of them in case tracking fails.  Without downscaling, it shares the blurred pixels.
+        if (scale < 1.0f) {
+            mUnblurred = ensure(mUnblurred, w * h);
+            System.arraycopy(eye, 0, mUnblurred, 0, w * h);
+        }
+
+        syncWindow(eye, w, h);
+        gaussianBlur5(mWindow, mWindowWidth, mWindowHeight, mViewX, mViewY, eye, w, h);
+
+        if (TEMPORAL_TRACKING && priorX >= 0 && priorY >= 0 && priorX < w && priorY < h
+                && trackCenter(eye, w, h, priorX, priorY)) {
+            return;
+        }
+
+        int[] small;
+        int smallWidth;
+        int smallHeight;
+        if (scale < 1.0f) {
+            smallWidth = (int) Math.rint(w * (double) scale);
+            smallHeight = (int) Math.rint(h * (double) scale);
+            small = mSmall = ensure(mSmall, smallWidth * smallHeight);
+            resize(mUnblurred, w, h, small, smallWidth, smallHeight, scale);
+        } else {
+            small = eye;
+            smallWidth = w;
+            smallHeight = h;
+        }
+
+        getCentermap(small, smallWidth, smallHeight, small == eye);
+
+        // Find position of max value in small-size centermap
+        int best = 0;
+        int size = smallWidth * smallHeight;
+        int[] centermap = mTemp;
+        for (int i = 1; i < size; ++i) {
+            if (centermap[i] > centermap[best]) {
+                best = i;
+            }
+        }
+        float[] scores = mAccumulator;
+        for (int i = 0; i < size; ++i) {
+            scores[i] = centermap[i];
+        }
+        mConfidence = peakConfidence(scores, smallWidth, smallHeight, best % smallWidth,
+                best / smallWidth);
+
+        if (!PYRAMID_SEARCH) {
+            // Return re-scaled center to full size
+            float inverse = 1 / scale;
+            mCenterX = (float) Math.rint((best % smallWidth) * inverse);
+            mCenterY = (float) Math.rint((best / smallWidth) * inverse);
+            return;
+        }
+
+        // Refine the coarse center at twice the resolution until the full size is reached, and to
+        // sub-pixel accuracy there
+        mCenterX = best % smallWidth;
+        mCenterY = best / smallWidth;
+        float levelScale = scale;
+        do {
+            float nextScale = Math.min(levelScale * 2, 1.0f);
+            float ratio = nextScale / levelScale;
+            if (nextScale < 1.0f) {
+                int levelWidth = (int) Math.rint(w * (double) nextScale);
+                int levelHeight = (int) Math.rint(h * (double) nextScale);
+                mLevel = ensure(mLevel, levelWidth * levelHeight);
+                resize(eye, w, h, mLevel, levelWidth, levelHeight, nextScale);
+                refineCenter(mLevel, levelWidth, levelHeight, mCenterX * ratio, mCenterY * ratio,
+                        false, false);
+            } else {
+                refineCenter(eye, w, h, mCenterX * ratio, mCenterY * ratio, true, true);
+            }
+            levelScale = nextScale;
+        } while (levelScale < 1.0f);
+    }
+
+    /**
+     * Port of refine_center: finds the best center of the level within PYRAMID_REFINE_RADIUS of the
+     * estimate, optionally to sub-pixel accuracy.  Leaves it in mCenterX and mCenterY.  inWindow
+     * tells whether the level is the full size eye ROI, see getGradients().
+     */
+    private void refineCenter(int[] level, int w, int h, float estimateX, float estimateY,
+                              boolean subpixel, boolean inWindow) {
+        getGradientPoints(level, w, h, inWindow);
+        float best = searchWindow(w, h, (int) Math.rint(estimateX), (int) Math.rint(estimateY),
+                PYRAMID_REFINE_RADIUS, null);
+        if (subpixel) {
+            subpixelPeak(best);
+        }
+    }
+
+    /**
+     * Port of track_center: looks for the center of the full size eye near the previous center.
+     * Returns false if it is not found there with enough confidence, and the full search has to
+     * run.  Otherwise leaves the center in mCenterX and mCenterY.
+     */
+    private boolean trackCenter(int[] eye, int w, int h, float priorX, float priorY) {
+        getGradientPoints(eye, w, h, true);
+        float totalWeight = 0;
+        for (int i = 0; i < mPointCount; ++i) {
+            totalWeight += mPointWeight[i];
+        }
+        if (totalWeight == 0) {
+            return false;
+        }
+
+        int startX = (int) Math.rint(priorX);
+        int startY = (int) Math.rint(priorY);
+        float best = searchWindow(w, h, startX, startY, TRACKING_WINDOW_RADIUS, mWindowScores);
+        if (Math.abs((int) mCenterX - startX) == TRACKING_WINDOW_RADIUS
+                || Math.abs((int) mCenterY - startY) == TRACKING_WINDOW_RADIUS
+                || best < TRACKING_MIN_CONFIDENCE * totalWeight) {
+            return false;
+        }
+        int windowSize = 2 * TRACKING_WINDOW_RADIUS + 1;
+        mConfidence = peakConfidence(mWindowScores, windowSize, windowSize,
+                (int) mCenterX - startX + TRACKING_WINDOW_RADIUS,
+                (int) mCenterY - startY + TRACKING_WINDOW_RADIUS);
+        subpixelPeak(best);
+        return true;
+    }
+
+    /**
+     * Scores the candidates within radius of (startX, startY) against the current gradient points.
+     * Returns the best score, and leaves its position in mCenterX and mCenterY.  If scores is not
+     * null, it receives the (2*radius+1)^2 scores of the window, with -1 outside the image.
+     */
+    private float searchWindow(int w, int h, int startX, int startY, int radius, float[] scores) {
+        int bestX = startX;
+        int bestY = startY;
+        float best = -1;
+        int i = 0;
+        for (int y = startY - radius; y <= startY + radius; ++y) {
+            for (int x = startX - radius; x <= startX + radius; ++x) {
+                float score = -1;
+                if (x >= 0 && y >= 0 && x < w && y < h) {
+                    score = centerScore(x, y);
+                }
+                if (scores != null) {
+                    scores[i++] = score;
+                }
+                if (score > best) {
+                    best = score;
+                    bestX = x;
+                    bestY = y;
+                }
+            }
+        }
+        mCenterX = bestX;
+        mCenterY = bestY;
+        return best;
+    }
+
+    /**
+     * Moves the peak at (mCenterX, mCenterY) with the given score to sub-pixel accuracy.
+     */
+    private void subpixelPeak(float best) {
+        float x = mCenterX;
+        float y = mCenterY;
+        mCenterX += parabolaPeak(centerScore(x - 1, y), best, centerScore(x + 1, y));
+        mCenterY += parabolaPeak(centerScore(x, y - 1), best, centerScore(x, y + 1));
+    }
+
+    /**
+     * Collects the pixels of the image that have a gradient, weighted like in getCentermap().
+     */
+    private void getGradientPoints(int[] image, int w, int h, boolean inWindow) {
+        int size = w * h;
+        getGradients(image, w, h, inWindow);
+        mPointX = ensure(mPointX, size);
+        mPointY = ensure(mPointY, size);
+        mPointGradX = ensure(mPointGradX, size);
+        mPointGradY = ensure(mPointGradY, size);
+        mPointWeight = ensure(mPointWeight, size);
+        mPointCount = 0;
+        for (int y = 0; y < h; ++y) {
+            int weightIndex = y * w;
+            for (int x = 0; x < w; ++x) {
+                float gx = mGradX[y * w + x];
+                float gy = mGradY[y * w + x];
+                if (gx == 0 && gy == 0) {
+                    continue;
+                }
+                mPointX[mPointCount] = x;
+                mPointY[mPointCount] = y;
+                mPointGradX[mPointCount] = gx;
+                mPointGradY[mPointCount] = gy;
+                mPointWeight[mPointCount] = mDarknessWeights[image[weightIndex++]];
+                ++mPointCount;
+            }
+        }
+    }
+
+    /**
+     * The value getCentermap() accumulates for the center (cx, cy), before normalization.
+     */
+    private float centerScore(float cx, float cy) {
+        float score = 0;
+        for (int i = 0; i < mPointCount; ++i) {
+            float dx = mPointX[i] - cx;
+            float dy = mPointY[i] - cy;
+            float mag = (float) Math.sqrt(dx * dx + dy * dy);
+            if (mag == 0) {
+                continue;
+            }
+            float diff = (dx / mag * mPointGradX[i] + dy / mag * mPointGradY[i]) * mPointWeight[i];
+            if (diff > 0) {
+                score += diff;
+            }
+        }
+        return score;
+    }
+
+    /**
+     * Port of peak_confidence: 1 - second peak / peak, where the second peak is the highest local
+     * maximum further than PEAK_EXCLUSION_RADIUS from the peak at (peakX, peakY).
+     */
+    private static float peakConfidence(float[] scores, int w, int h, int peakX, int peakY) {
+        float peak = scores[peakY * w + peakX];
+        if (peak <= 0) {
+            return 0;
+        }
+        float second = 0;
+        for (int y = 0; y < h; ++y) {
+            for (int x = 0; x < w; ++x) {
+                float value = scores[y * w + x];
+                if (value <= second || (Math.abs(x - peakX) <= PEAK_EXCLUSION_RADIUS
+                        && Math.abs(y - peakY) <= PEAK_EXCLUSION_RADIUS)) {
+                    continue;
+                }
+                boolean localMax = true;
+                for (int ny = Math.max(y - 1, 0); ny <= Math.min(y + 1, h - 1); ++ny) {
+                    for (int nx = Math.max(x - 1, 0); nx <= Math.min(x + 1, w - 1); ++nx) {
+                        localMax = localMax && scores[ny * w + nx] <= value;
+                    }
+                }
+                if (localMax) {
+                    second = value;
+                }
+            }
+        }
+        return 1 - second / peak;
+    }
+
+    /**
+     * Offset of the peak of the parabola through three equally spaced scores, within half a pixel.
+     */
+    private static float parabolaPeak(float before, float at, float after) {
+        float curvature = before - 2 * at + after;
+        if (curvature >= 0) {
+            return 0;
+        }
+        return Math.max(-0.5f, Math.min(0.5f, 0.5f * (before - after) / curvature));
+    }
+
+    /**
+     * Port of get_gradients: Sobel gradients of the image into mGradX and mGradY, with the weak
+     * ones zeroed and the rest normalized.  If inWindow, the image is the eye ROI, which the native
+     * code filters as a view of the padded window; otherwise it is a resized copy.
+     */
+    private void getGradients(int[] image, int w, int h, boolean inWindow) {
+        int size = w * h;
+        float[] gradX = mGradX = ensure(mGradX, size);
+        float[] gradY = mGradY = ensure(mGradY, size);
+        if (inWindow) {
+            syncWindow(image, w, h);
+            sobel5(mWindow, mWindowWidth, mWindowHeight, mViewX, mViewY, gradX, w, h, true);
+            sobel5(mWindow, mWindowWidth, mWindowHeight, mViewX, mViewY, gradY, w, h, false);
+        } else {
+            sobel5(image, w, h, 0, 0, gradX, w, h, true);
+            sobel5(image, w, h, 0, 0, gradY, w, h, false);
+        }
+
+        // Get magnitudes of gradients, and calculate thresh
+        float[] mags = mAccumulator = ensure(mAccumulator, size);
+        double sum = 0;
+        double sqSum = 0;
+        for (int i = 0; i < size; ++i) {
+            float mag = (float) Math.sqrt(gradX[i] * gradX[i] + gradY[i] * gradY[i]);
+            mags[i] = mag;
+            sum += mag;
+            sqSum += (double) mag * mag;
+        }
+        double mean = sum / size;
+        double stddev = Math.sqrt(Math.max(sqSum / size - mean * mean, 0));
+        int magThresh = (int) (stddev / 2 + mean);
+
+        // Threshold out gradients with mags which are too low, and normalize the rest
+        for (int i = 0; i < size; ++i) {
+            if (mags[i] < magThresh) {
+                gradX[i] = 0;
+                gradY[i] = 0;
+            } else {
+                gradX[i] = gradX[i] / (mags[i] + 1);
+                gradY[i] = gradY[i] / (mags[i] + 1);
+            }
+        }
+    }
+
+    /**
+     * Port of get_centermap.  Leaves the 8-bit centermap in mTemp.
+     */
+    private void getCentermap(int[] eye, int w, int h, boolean inWindow) {
+        int size = w * h;
+        getGradients(eye, w, h, inWindow);
+        float[] gradX = mGradX;
+        float[] gradY = mGradY;
+
+        // Normalized displacement vectors for every offset (dx, dy) between a gradient and a
+        // possible center, at row dy + h-1 and column dx + w-1.
+        int tableWidth = 2 * w - 1;
+        if (mTableRows != h || mTableCols != w) {
+            mUnitX = ensure(mUnitX, tableWidth * (2 * h - 1));
+            mUnitY = ensure(mUnitY, tableWidth * (2 * h - 1));
+            for (int dy = 1 - h; dy < h; ++dy) {
+                for (int dx = 1 - w; dx < w; ++dx) {
+                    int i = (dy + h - 1) * tableWidth + dx + w - 1;
+                    float mag = (float) Math.sqrt(dx * dx + dy * dy);
+                    mUnitX[i] = mag == 0 ? 0 : dx / mag;
+                    mUnitY[i] = mag == 0 ? 0 : dy / mag;
+                }
+            }
+            mTableRows = h;
+            mTableCols = w;
+        }
+
+        float[] accumulator = mAccumulator;
+        for (int i = 0; i < size; ++i) {
+            accumulator[i] = 0;
+        }
+        for (int y = 0; y < h; ++y) {
+            // As in the native code, the k-th gradient of a row is weighted by the darkness of the
+            // k-th pixel of that row.
+            int weightIndex = y * w;
+            for (int x = 0; x < w; ++x) {
+                float gx = gradX[y * w + x];
+                float gy = gradY[y * w + x];
+                if (gx == 0 && gy == 0) {
+                    continue;
+                }
+                float weight = mDarknessWeights[eye[weightIndex++]];
+                for (int cy = 0; cy < h; ++cy) {
+                    int base = (y - cy + h - 1) * tableWidth + x + w - 1;
+                    int row = cy * w;
+                    for (int cx = 0; cx < w; ++cx) {
+                        float diff = (mUnitX[base - cx] * gx + mUnitY[base - cx] * gy) * weight;
+                        if (diff > 0) {
+                            accumulator[row + cx] += diff;
+                        }
+                    }
+                }
+            }
+        }
+
+        // Normalize and convert accumulator, like normalize(NORM_MINMAX) and convertTo(CV_8U)
+        double min = Double.MAX_VALUE;
+        double max = -Double.MAX_VALUE;
+        for (int i = 0; i < size; ++i) {
+            accumulator[i] = (float) (accumulator[i] * (1.0 / size));
+            min = Math.min(min, accumulator[i]);
+            max = Math.max(max, accumulator[i]);
+        }
+        double scale = max - min > 2.220446049250313E-16 ? 255 / (max - min) : 0;
+        double shift = -min * scale;
+        int[] centermap = mTemp = ensure(mTemp, size);
+        for (int i = 0; i < size; ++i) {
+            centermap[i] = saturateUchar((float) (accumulator[i] * scale + shift));
+        }
+    }
+
+    //==============================================================================================
+    // OpenCV primitives
+    //==============================================================================================
+
+    /**
+     * Copies the eye ROI image into its place in mWindow, so that the filters of the view read its
+     * current pixels, and the padding as it was copied from the frame.
+     */
+    private void syncWindow(int[] image, int w, int h) {
+        for (int r = 0; r < h; ++r) {
+            System.arraycopy(image, r * w, mWindow, (mViewY + r) * mWindowWidth + mViewX, w);
+        }
+    }
+
+    /**
+     * GaussianBlur with a 5x5 kernel and sigma 0, i.e. [1 4 6 4 1] / 16 in both directions, of the
+     * w x h view at (x0, y0) of src into dst.  Like OpenCV on a view, pixels of src around the view
+     * are read, and src is only reflected at its own edges.  dst may be src if the view is all of
+     * it.
+     */
+    private void gaussianBlur5(int[] src, int srcWidth, int srcHeight, int x0, int y0, int[] dst,
+                               int w, int h) {
+        int[] rows = mRowTemp = ensure(mRowTemp, w * srcHeight);
+        for (int y = 0; y < srcHeight; ++y) {
+            int p = y * srcWidth;
+            for (int x = 0; x < w; ++x) {
+                int sx = x0 + x;
+                rows[y * w + x] = src[p + reflect(sx - 2, srcWidth)]
+                        + 4 * src[p + reflect(sx - 1, srcWidth)] + 6 * src[p + sx]
+                        + 4 * src[p + reflect(sx + 1, srcWidth)] + src[p + reflect(sx + 2, srcWidth)];
+            }
+        }
+        for (int y = 0; y < h; ++y) {
+            int sy = y0 + y;
+            for (int x = 0; x < w; ++x) {
+                int sum = rows[reflect(sy - 2, srcHeight) * w + x]
+                        + 4 * rows[reflect(sy - 1, srcHeight) * w + x] + 6 * rows[sy * w + x]
+                        + 4 * rows[reflect(sy + 1, srcHeight) * w + x]
+                        + rows[reflect(sy + 2, srcHeight) * w + x];
+                // Rounded half to even, like OpenCV's bit-exact fixed-point implementation
+                dst[y * w + x] = (sum + 127 + ((sum >> 8) & 1)) >> 8;
+            }
+        }
+    }
+
+    /**
+     * Sobel with ksize 5 of the w x h view at (x0, y0) of src into a float image: derivative
+     * [-1 -2 0 2 1] along one axis and smoothing [1 4 6 4 1] along the other.  Borders as in
+     * gaussianBlur5().
+     */
+    private void sobel5(int[] src, int srcWidth, int srcHeight, int x0, int y0, float[] out, int w,
+                        int h, boolean dx) {
+        int[] rows = mRowTemp = ensure(mRowTemp, w * srcHeight);
+        for (int y = 0; y < srcHeight; ++y) {
+            int p = y * srcWidth;
+            for (int x = 0; x < w; ++x) {
+                int sx = x0 + x;
+                int m2 = src[p + reflect(sx - 2, srcWidth)];
+                int m1 = src[p + reflect(sx - 1, srcWidth)];
+                int p1 = src[p + reflect(sx + 1, srcWidth)];
+                int p2 = src[p + reflect(sx + 2, srcWidth)];
+                rows[y * w + x] = dx ? -m2 - 2 * m1 + 2 * p1 + p2
+                        : m2 + 4 * m1 + 6 * src[p + sx] + 4 * p1 + p2;
+            }
+        }
+        for (int y = 0; y < h; ++y) {
+            int sy = y0 + y;
+            for (int x = 0; x < w; ++x) {
+                int m2 = rows[reflect(sy - 2, srcHeight) * w + x];
+                int m1 = rows[reflect(sy - 1, srcHeight) * w + x];
+                int p1 = rows[reflect(sy + 1, srcHeight) * w + x];
+                int p2 = rows[reflect(sy + 2, srcHeight) * w + x];
+                out[y * w + x] = dx ? m2 + 4 * m1 + 6 * rows[sy * w + x] + 4 * p1 + p2
+                        : -m2 - 2 * m1 + 2 * p1 + p2;
+            }
+        }
+    }
+
+    /**
+     * Dilates or erodes the w x h view at (x0, y0) of src into dst with the 5x5 ellipse.  Pixels of
+     * src around the view are read, pixels outside src are ignored.
+     */
+    private static void morph(int[] src, int srcWidth, int srcHeight, int x0, int y0, int[] dst,
+                              int w, int h, boolean dilate) {
+        for (int y = 0; y < h; ++y) {
+            for (int x = 0; x < w; ++x) {
+                int best = dilate ? 0 : 255;
+                for (int ky = 0; ky < 5; ++ky) {
+                    int yy = y0 + y + ky - 2;
+                    if (yy < 0 || yy >= srcHeight) {
+                        continue;
+                    }
+                    for (int kx = ELLIPSE_FIRST[ky]; kx <= ELLIPSE_LAST[ky]; ++kx) {
+                        int xx = x0 + x + kx - 2;
+                        if (xx < 0 || xx >= srcWidth) {
+                            continue;
+                        }
+                        int v = src[yy * srcWidth + xx];
+                        best = dilate ? Math.max(best, v) : Math.min(best, v);
+                    }
+                }
+                dst[y * w + x] = best;
+            }
+        }
+    }
+
+    /**
+     * Area of the border starting at the blob pixel start, traced like findContours and measured
+     * like contourArea, i.e. the polygon through the border pixel centers.  For an outer border,
+     * start is the first pixel of the blob; for a hole border, it is the pixel left of the first
+     * pixel of the hole.
+     */
+    private static double contourArea(int[] image, int w, int h, int start, boolean hole) {
+        int y0 = start / w;
+        int x0 = start % w;
+
+        // Look clockwise around the start, beginning at the dark pixel next to it, for the last
+        // pixel of the border.
+        int first = hole ? 0 : 4;
+        int d1 = -1;
+        for (int k = 0; k < 8; ++k) {
+            int d = (first - k + 8) & 7;
+            if (isSet(image, w, h, y0 + DIR_Y[d], x0 + DIR_X[d])) {
+                d1 = d;
+                break;
+            }
+        }
+        if (d1 < 0) {
+            // single pixel
+            return 0;
+        }
+        int y1 = y0 + DIR_Y[d1];
+        int x1 = x0 + DIR_X[d1];
+
+        // Follow the border counterclockwise and accumulate the shoelace sum.
+        double twiceArea = 0;
+        int py = y1;
+        int px = x1;
+        int cy = y0;
+        int cx = x0;
+        while (true) {
+            int back = direction(py - cy, px - cx);
+            int ny = cy;
+            int nx = cx;
+            for (int k = 1; k <= 8; ++k) {
+                int d = (back + k) & 7;
+                if (isSet(image, w, h, cy + DIR_Y[d], cx + DIR_X[d])) {
+                    ny = cy + DIR_Y[d];
+                    nx = cx + DIR_X[d];
+                    break;
+                }
+            }
+            twiceArea += (double) cx * ny - (double) nx * cy;
+            if (ny == y0 && nx == x0 && cy == y1 && cx == x1) {
+                break;
+            }
+            py = cy;
+            px = cx;
+            cy = ny;
+            cx = nx;
+        }
+        return Math.abs(twiceArea) / 2;
+    }
+
+    /**
+     * Labels the regions of the binary image in mRegions, in the order findContours meets their
+     * borders, and returns their number.  Regions are 8-connected blobs of set pixels and
+     * 4-connected areas of unset ones.  Region 0 is the unset area around everything, which
+     * includes the outside of the image; every other unset region is a hole in a blob.  The parent
+     * of a blob is the unset region around it, and the parent of a hole is the blob around it.
+     */
+    private int labelRegions(int[] image, int w, int h) {
+        int size = w * h;
+        int[] regions = mRegions = ensure(mRegions, size);
+        for (int i = 0; i < size; ++i) {
+            regions[i] = -1;
+        }
+        mStack = ensure(mStack, size);
+        mRegionParent = ensure(mRegionParent, size + 1);
+        mRegionStart = ensure(mRegionStart, size + 1);
+        mRegionBoxes = ensure(mRegionBoxes, 4 * (size + 1));
+        mRegionDrawn = ensure(mRegionDrawn, size + 1);
+        mRegionParity = ensure(mRegionParity, size + 1);
+
+        int seeds = 0;
+        for (int i = 0; i < size; ++i) {
+            int x = i % w;
+            int y = i / w;
+            if ((x == 0 || y == 0 || x == w - 1 || y == h - 1) && image[i] == 0) {
+                regions[i] = 0;
+                mStack[seeds++] = i;
+            }
+        }
+        mRegionDrawn[0] = 0;
+        mRegionParity[0] = 0;
+        floodRegion(image, w, h, seeds, 0);
+
+        int count = 1;
+        for (int start = 0; start < size; ++start) {
+            if (regions[start] >= 0) {
+                continue;
+            }
+            // start is the first pixel of a new region in raster order.  The pixel left of a blob
+            // is in the region around it, and the pixel above a hole is in the blob around it.
+            if (image[start] != 0) {
+                mRegionParent[count] = start % w == 0 ? 0 : regions[start - 1];
+            } else {
+                mRegionParent[count] = regions[start - w];
+            }
+            mRegionStart[count] = start;
+            regions[start] = count;
+            mStack[0] = start;
+            floodRegion(image, w, h, 1, count);
+            ++count;
+        }
+        return count;
+    }
+
+    /**
+     * Labels the region grown from the first seeds pixels of mStack, which are labeled already,
+     * and leaves its bounding box in mRegionBoxes.
+     */
+    private void floodRegion(int[] image, int w, int h, int seeds, int region) {
+        int[] stack = mStack;
+        int[] regions = mRegions;
+        // Set pixels are 8-connected, unset ones 4-connected
+        boolean set = image[stack[0]] != 0;
+        int step = set ? 1 : 2;
+        int minX = w;
+        int minY = h;
+        int maxX = 0;
+        int maxY = 0;
+        int count = seeds;
+        for (int next = 0; next < count; ++next) {
+            int y = stack[next] / w;
+            int x = stack[next] % w;
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+            for (int d = 0; d < 8; d += step) {
+                int yy = y + DIR_Y[d];
+                int xx = x + DIR_X[d];
+                if (yy >= 0 && yy < h && xx >= 0 && xx < w && regions[yy * w + xx] < 0
+                        && (image[yy * w + xx] != 0) == set) {
+                    regions[yy * w + xx] = region;
+                    stack[count++] = yy * w + xx;
+                }
+            }
+        }
+        mRegionBoxes[4 * region] = minX;
+        mRegionBoxes[4 * region + 1] = minY;
+        mRegionBoxes[4 * region + 2] = maxX;
+        mRegionBoxes[4 * region + 3] = maxY;
+    }
+
+    private static boolean isSet(int[] image, int w, int h, int y, int x) {
+        return y >= 0 && y < h && x >= 0 && x < w && image[y * w + x] != 0;
+    }
+
+    private static int direction(int dy, int dx) {
+        for (int d = 0; d < 8; ++d) {
+            if (DIR_Y[d] == dy && DIR_X[d] == dx) {
+                return d;
+            }
+        }
+        throw new IllegalArgumentException("not a neighbour: " + dy + ", " + dx);
+    }
+
+    /**
+     * resize with INTER_LINEAR and the same scale in both directions, using OpenCV's fixed-point
+     * coefficients and the rounding of its vectorized vertical pass.  An exact 2x downscale is an
+     * area average, as in OpenCV.
+     */
+    private void resize(int[] src, int w, int h, int[] dst, int dw, int dh, float scale) {
+        double inverseScale = 1. / (double) scale;
+        if (Math.abs(inverseScale - 2) < 2.220446049250313E-16) {
+            for (int y = 0; y < dh; ++y) {
+                int y0 = Math.min(2 * y, h - 1);
+                int y1 = Math.min(2 * y + 1, h - 1);
+                for (int x = 0; x < dw; ++x) {
+                    int x0 = Math.min(2 * x, w - 1);
+                    int x1 = Math.min(2 * x + 1, w - 1);
+                    dst[y * dw + x] = (src[y0 * w + x0] + src[y0 * w + x1] + src[y1 * w + x0]
+                            + src[y1 * w + x1] + 2) >> 2;
+                }
+            }
+            return;
+        }
+        int[] rows = mRowTemp = ensure(mRowTemp, dw * h);
+        for (int x = 0; x < dw; ++x) {
+            float fx = (float) ((x + 0.5) * inverseScale - 0.5);
+            int sx = (int) Math.floor(fx);
+            fx -= sx;
+            if (sx < 0) {
+                sx = 0;
+                fx = 0;
+            }
+            if (sx >= w - 1) {
+                sx = w - 1;
+                fx = 0;
+            }
+            int a0 = (int) Math.rint((1.f - fx) * 2048);
+            int a1 = (int) Math.rint(fx * 2048);
+            int sx1 = Math.min(sx + 1, w - 1);
+            for (int y = 0; y < h; ++y) {
+                rows[y * dw + x] = src[y * w + sx] * a0 + src[y * w + sx1] * a1;
+            }
+        }
+        for (int y = 0; y < dh; ++y) {
+            float fy = (float) ((y + 0.5) * inverseScale - 0.5);
+            int sy = (int) Math.floor(fy);
+            fy -= sy;
+            if (sy < 0) {
+                sy = 0;
+                fy = 0;
+            }
+            if (sy >= h - 1) {
+                sy = h - 1;
+                fy = 0;
+            }
+            int b0 = (int) Math.rint((1.f - fy) * 2048);
+            int b1 = (int) Math.rint(fy * 2048);
+            int sy1 = Math.min(sy + 1, h - 1);
+            for (int x = 0; x < dw; ++x) {
+                // The SIMD code multiplies the high 16 bits of the row sums and drops the low ones
+                int v = (((b0 * (rows[sy * dw + x] >> 4)) >> 16)
+                        + ((b1 * (rows[sy1 * dw + x] >> 4)) >> 16) + 2) >> 2;
+                dst[y * dw + x] = Math.max(0, Math.min(255, v));
+            }
+        }
+    }
+
+    /**
+     * inpaint with INPAINT_TELEA: fills the pixels set in mask, marching inwards from the border of
+     * the masked region, following OpenCV's implementation.
+     */
+    private void inpaintTelea(int[] image, int[] mask, int w, int h, int range) {
+        // The flag and distance images have a one pixel border.
+        int ew = w + 2;
+        int eh = h + 2;
+        int size = ew * eh;
+        byte[] flags = mFlags = ensure(mFlags, size);
+        byte[] ring = mRing = ensure(mRing, size);
+        float[] t = mDistance = ensure(mDistance, size);
+        mHeapKeys = ensure(mHeapKeys, size);
+        mHeapIndices = ensure(mHeapIndices, size);
+
+        for (int i = 0; i < size; ++i) {
+            flags[i] = KNOWN;
+            t[i] = 1.0e6f;
+        }
+        for (int y = 0; y < h; ++y) {
+            for (int x = 0; x < w; ++x) {
+                if (mask[y * w + x] != 0) {
+                    flags[(y + 1) * ew + x + 1] = INSIDE;
+                }
+            }
+        }
+
+        // The band is the known pixels next to the masked region, and the ring the known pixels
+        // within range of it, apart from the band.
+        mHeapSize = 0;
+        for (int y = 1; y < eh - 1; ++y) {
+            for (int x = 1; x < ew - 1; ++x) {
+                int i = y * ew + x;
+                ring[i] = KNOWN;
+                if (flags[i] == INSIDE) {
+                    continue;
+                }
+                if (flags[i - 1] == INSIDE || flags[i + 1] == INSIDE
+                        || flags[i - ew] == INSIDE || flags[i + ew] == INSIDE) {
+                    flags[i] = BAND;
+                    t[i] = 0;
+                    push(i, 0);
+                } else if (isNear(flags, ew, eh, x, y, range)) {
+                    ring[i] = INSIDE;
+                }
+            }
+        }
+        for (int x = 0; x < ew; ++x) {
+            ring[x] = KNOWN;
+            ring[(eh - 1) * ew + x] = KNOWN;
+        }
+        for (int y = 0; y < eh; ++y) {
+            ring[y * ew] = KNOWN;
+            ring[y * ew + ew - 1] = KNOWN;
+        }
+
+        // Distances to the band outside the region are negative.
+        int heapSize = mHeapSize;
+        int[] band = mStack = ensure(mStack, heapSize);
+        System.arraycopy(mHeapIndices, 0, band, 0, heapSize);
+        march(ring, t, ew, eh, null, 0);
+        for (int i = 0; i < size; ++i) {
+            if (ring[i] == CHANGE) {
+                t[i] = -t[i];
+            }
+        }
+
+        // Then march into the region and inpaint each pixel as it is reached.
+        mHeapSize = 0;
+        for (int i = 0; i < heapSize; ++i) {
+            push(band[i], 0);
+        }
+        march(flags, t, ew, eh, image, range);
+    }
+
+    private static boolean isNear(byte[] flags, int ew, int eh, int x, int y, int range) {
+        for (int yy = Math.max(0, y - range); yy <= Math.min(eh - 1, y + range); ++yy) {
+            for (int xx = Math.max(0, x - range); xx <= Math.min(ew - 1, x + range); ++xx) {
+                if (flags[yy * ew + xx] == INSIDE) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Fast marching from the queued pixels into the INSIDE pixels of flags.  Without an image, the
+     * reached pixels are marked CHANGE; with an image, they are inpainted.
+     */
+    private void march(byte[] flags, float[] t, int ew, int eh, int[] image, int range) {
+        while (mHeapSize > 0) {
+            int index = pop();
+            flags[index] = image == null ? CHANGE : KNOWN;
+            int ii = index / ew;
+            int jj = index % ew;
+            for (int q = 0; q < 4; ++q) {
+                int i = q == 0 ? ii - 1 : q == 2 ? ii + 1 : ii;
+                int j = q == 1 ? jj - 1 : q == 3 ? jj + 1 : jj;
+                if (i <= 0 || j <= 0 || i >= eh - 1 || j >= ew - 1) {
+                    continue;
+                }
+                int p = i * ew + j;
+                if (flags[p] != INSIDE) {
+                    continue;
+                }
+                float dist = Math.min(
+                        Math.min(solve(flags, t, p - ew, p - 1), solve(flags, t, p + ew, p - 1)),
+                        Math.min(solve(flags, t, p - ew, p + 1), solve(flags, t, p + ew, p + 1)));
+                t[p] = dist;
+                if (image != null) {
+                    inpaintPixel(flags, t, ew, eh, image, range, i, j);
+                }
+                flags[p] = BAND;
+                push(p, dist);
+            }
+        }
+    }
+
+    private static float solve(byte[] flags, float[] t, int p1, int p2) {
+        double a11 = t[p1];
+        double a22 = t[p2];
+        double m12 = Math.min(a11, a22);
+        double sol;
+        if (flags[p1] != INSIDE) {
+            if (flags[p2] != INSIDE) {
+                if (Math.abs(a11 - a22) >= 1.0) {
+                    sol = 1 + m12;
+                } else {
+                    sol = (a11 + a22 + Math.sqrt(2 - (a11 - a22) * (a11 - a22))) * 0.5;
+                }
+            } else {
+                sol = 1 + a11;
+            }
+        } else if (flags[p2] != INSIDE) {
+            sol = 1 + a22;
+        } else {
+            sol = 1 + m12;
+        }
+        return (float) sol;
+    }
+
+    /**
+     * Telea's weighted estimate of padded pixel (i, j) from the known pixels within range.
+     */
+    private static void inpaintPixel(byte[] f, float[] t, int ew, int eh, int[] out, int range,
+                                     int i, int j) {
+        int w = ew - 2;
+        int p = i * ew + j;
+        float gradTx;
+        float gradTy;
+        if (f[p + 1] != INSIDE) {
+            gradTx = f[p - 1] != INSIDE ? (t[p + 1] - t[p - 1]) * 0.5f : t[p + 1] - t[p];
+        } else {
+            gradTx = f[p - 1] != INSIDE ? t[p] - t[p - 1] : 0;
+        }
+        if (f[p + ew] != INSIDE) {
+            gradTy = f[p - ew] != INSIDE ? (t[p + ew] - t[p - ew]) * 0.5f : t[p + ew] - t[p];
+        } else {
+            gradTy = f[p - ew] != INSIDE ? t[p] - t[p - ew] : 0;
+        }
+
+        float ia = 0;
+        float jx = 0;
+        float jy = 0;
+        float s = 1.0e-20f;
+        for (int k = i - range; k <= i + range; ++k) {
+            int km = k - 1 + (k == 1 ? 1 : 0);
+            int kp = k - 1 - (k == eh - 2 ? 1 : 0);
+            for (int l = j - range; l <= j + range; ++l) {
+                int lm = l - 1 + (l == 1 ? 1 : 0);
+                int lp = l - 1 - (l == ew - 2 ? 1 : 0);
+                if (k <= 0 || l <= 0 || k >= eh - 1 || l >= ew - 1) {
+                    continue;
+                }
+                int q = k * ew + l;
+                if (f[q] == INSIDE || (l - j) * (l - j) + (k - i) * (k - i) > range * range) {
+                    continue;
+                }
+                float ry = i - k;
+                float rx = j - l;
+                float length = rx * rx + ry * ry;
+                float dst = (float) (1. / (length * Math.sqrt(length)));
+                float lev = (float) (1. / (1 + Math.abs(t[q] - t[p])));
+                float dir = rx * gradTx + ry * gradTy;
+                if (Math.abs(dir) <= 0.01) {
+                    dir = 0.000001f;
+                }
+                float weight = Math.abs(dst * lev * dir);
+
+                float gradIx;
+                float gradIy;
+                if (f[q + 1] != INSIDE) {
+                    gradIx = f[q - 1] != INSIDE
+                            ? (out[km * w + lp + 1] - out[km * w + lm - 1]) * 2.0f
+                            : out[km * w + lp + 1] - out[km * w + lm];
+                } else {
+                    gradIx = f[q - 1] != INSIDE ? out[km * w + lp] - out[km * w + lm - 1] : 0;
+                }
+                if (f[q + ew] != INSIDE) {
+                    gradIy = f[q - ew] != INSIDE
+                            ? (out[(kp + 1) * w + lm] - out[(km - 1) * w + lm]) * 2.0f
+                            : out[(kp + 1) * w + lm] - out[km * w + lm];
+                } else {
+                    gradIy = f[q - ew] != INSIDE ? out[kp * w + lm] - out[(km - 1) * w + lm] : 0;
+                }
+                ia += weight * out[km * w + lm];
+                jx -= weight * (gradIx * rx);
+                jy -= weight * (gradIy * ry);
+                s += weight;
+            }
+        }
+        float sat = (float) (ia / s + (jx + jy) / (Math.sqrt(jx * jx + jy * jy) + 1.0e-20f)
+                + 0.5f);
+        out[(i - 1) * w + j - 1] = saturateUchar(sat);
+    }
+
+    //==============================================================================================
+    // Priority queue of padded pixel indices, ordered by distance and then by index like the
+    // std::priority_queue OpenCV uses.
+    //==============================================================================================
+
+    private void push(int index, float key) {
+        int n = mHeapSize++;
+        while (n > 0) {
+            int parent = (n - 1) / 2;
+            if (!less(key, index, mHeapKeys[parent], mHeapIndices[parent])) {
+                break;
+            }
+            mHeapKeys[n] = mHeapKeys[parent];
+            mHeapIndices[n] = mHeapIndices[parent];
+            n = parent;
+        }
+        mHeapKeys[n] = key;
+        mHeapIndices[n] = index;
+    }
+
+    private int pop() {
+        int top = mHeapIndices[0];
+        int size = --mHeapSize;
+        float key = mHeapKeys[size];
+        int index = mHeapIndices[size];
+        int n = 0;
+        while (true) {
+            int child = 2 * n + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && less(mHeapKeys[child + 1], mHeapIndices[child + 1],
+                    mHeapKeys[child], mHeapIndices[child])) {
+                ++child;
+            }
+            if (!less(mHeapKeys[child], mHeapIndices[child], key, index)) {
+                break;
+            }
+            mHeapKeys[n] = mHeapKeys[child];
+            mHeapIndices[n] = mHeapIndices[child];
+            n = child;
+        }
+        mHeapKeys[n] = key;
+        mHeapIndices[n] = index;
+        return top;
+    }
+
+    private static boolean less(float key1, int index1, float key2, int index2) {
+        return key1 < key2 || (key1 == key2 && index1 < index2);
+    }
+
+    //==============================================================================================
+    // Private
+    //==============================================================================================
+
+    /**
+     * BORDER_REFLECT_101 index.
+     */
+    private static int reflect(int i, int n) {
+        if (n == 1) {
+            return 0;
+        }
+        while (i < 0 || i >= n) {
+            i = i < 0 ? -i : 2 * n - 2 - i;
+        }
+        return i;
+    }
+
+    /**
+     * saturate_cast<uchar> of a float, which rounds to the nearest even integer.
+     */
+    private static int saturateUchar(float v) {
+        return (int) Math.max(0, Math.min(255, Math.rint(v)));
+    }
+
+    private static int[] ensure(int[] array, int size) {
+        return array.length >= size ? array : new int[size];
+    }
+
+    private static float[] ensure(float[] array, int size) {
+        return array.length >= size ? array : new float[size];
+    }
+
+    private static byte[] ensure(byte[] array, int size) {
+        return array.length >= size ? array : new byte[size];
+    }
+}
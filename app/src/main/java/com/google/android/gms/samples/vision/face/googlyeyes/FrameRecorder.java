@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.face.googlyeyes;
+
+import android.graphics.PointF;
+import android.util.SparseArray;
+
+import com.google.android.gms.vision.face.Face;
+import com.google.android.gms.vision.face.Landmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * Appends raw camera frames to a session file, for profiling and tuning the pipeline offline.<p>
+ *
+ * The file is preallocated and memory mapped, so recording a frame is a single copy of its Y plane
+ * from the camera buffer into the mapping, plus a fixed-size header, without system calls or
+ * allocation.  Recording stops when the file is full.  On close the file is truncated to the
+ * recorded length.<p>
+ *
+ * Layout, little endian:
+ * <ul>
+ * <li>File header of FILE_HEADER_SIZE bytes: magic, version, record header size, 0, the number of
+ * records and the end offset of the last record as longs.  Both are updated after every record, so
+ * an interrupted session stays readable.</li>
+ * <li>Per frame, a header of RECORD_HEADER_SIZE bytes: record size, camera frame id, timestamp in
+ * milliseconds, arrival in System.nanoTime(), width, height, rotation, flags, the number of faces
+ * and 0, followed by face id, left eye x, y and right eye x, y of up to MAX_FACES faces.  Missing
+ * eyes are NaN.  The width * height bytes of the Y plane follow, padded to a multiple of 8.</li>
+ * </ul>
+ */
+final class FrameRecorder {
+    private static final int FILE_MAGIC = 0x45594547; // "GEYE"
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 32;
+    private static final int FILE_RECORD_COUNT = 16;
+    private static final int FILE_END = 24;
+
+    static final int RECORD_HEADER_SIZE = 128;
+    static final int MAX_FACES = 4;
+    private static final int FACE_OFFSET = 48;
+    private static final int FACE_SIZE = 20;
+
+    // Record flags.
+    static final int FLAG_EXTRAPOLATED = 1;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final MappedByteBuffer mBuffer;
+    private long mRecordCount;
+    private int mEnd = FILE_HEADER_SIZE;
+    private int mDropped;
+    private boolean mClosed;
+
+    //==============================================================================================
+    // Methods
+    //==============================================================================================
+
+    /**
+     * Creates the session file with room for capacity bytes, replacing an existing file.
+     */
+    FrameRecorder(File file, int capacity) throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        try {
+            mFile.setLength(capacity);
+            mChannel = mFile.getChannel();
+            mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+        mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        mBuffer.putInt(0, FILE_MAGIC);
+        mBuffer.putInt(4, VERSION);
+        mBuffer.putInt(8, RECORD_HEADER_SIZE);
+        mBuffer.putInt(12, 0);
+        updateFileHeader();
+    }
+
+    /**
+     * Appends one frame: the first width * height bytes of yuv, its metadata and the eyes of up to
+     * MAX_FACES of the faces.  Returns false if the session is full or closed.
+     */
+    synchronized boolean record(byte[] yuv, int width, int height, int id, long timestampMillis,
+                                long arrivalNanos, int rotation, int flags,
+                                SparseArray<Face> faces) {
+        int size = width * height;
+        int recordSize = (RECORD_HEADER_SIZE + size + 7) & ~7;
+        if (mClosed || recordSize > mBuffer.capacity() - mEnd) {
+            ++mDropped;
+            return false;
+        }
+
+        int record = mEnd;
+        mBuffer.putInt(record, recordSize);
+        mBuffer.putInt(record + 4, id);
+        mBuffer.putLong(record + 8, timestampMillis);
+        mBuffer.putLong(record + 16, arrivalNanos);
+        mBuffer.putInt(record + 24, width);
+        mBuffer.putInt(record + 28, height);
+        mBuffer.putInt(record + 32, rotation);
+        mBuffer.putInt(record + 36, flags);
+        int faceCount = faces == null ? 0 : Math.min(faces.size(), MAX_FACES);
+        mBuffer.putInt(record + 40, faceCount);
+        mBuffer.putInt(record + 44, 0);
+        for (int i = 0; i < MAX_FACES; ++i) {
+            int face = record + FACE_OFFSET + i * FACE_SIZE;
+            if (i < faceCount) {
+                putFace(face, faces.valueAt(i));
+            } else {
+                mBuffer.putInt(face, -1);
+                putEye(face + 4, null);
+                putEye(face + 12, null);
+            }
+        }
+        mBuffer.position(record + RECORD_HEADER_SIZE);
+        mBuffer.put(yuv, 0, size);
+
+        mEnd = record + recordSize;
+        ++mRecordCount;
+        updateFileHeader();
+        return true;
+    }
+
+    /**
+     * Returns the number of frames that did not fit into the session.
+     */
+    synchronized int getDroppedCount() {
+        return mDropped;
+    }
+
+    /**
+     * Flushes the recorded frames, truncates the file to their length and closes it.
+     */
+    synchronized void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            mBuffer.force();
+            mChannel.truncate(mEnd);
+        } finally {
+            mFile.close();
+        }
+    }
+
+    //==============================================================================================
+    // Private
+    //==============================================================================================
+
+    private void updateFileHeader() {
+        mBuffer.putLong(FILE_RECORD_COUNT, mRecordCount);
+        mBuffer.putLong(FILE_END, mEnd);
+    }
+
+    private void putFace(int offset, Face face) {
+        PointF left = null;
+        PointF right = null;
+        List<Landmark> landmarks = face.getLandmarks();
+        for (int i = 0; i < landmarks.size(); ++i) {
+            Landmark landmark = landmarks.get(i);
+            if (landmark.getType() == Landmark.LEFT_EYE) {
+                left = landmark.getPosition();
+            } else if (landmark.getType() == Landmark.RIGHT_EYE) {
+                right = landmark.getPosition();
+            }
+        }
+        mBuffer.putInt(offset, face.getId());
+        putEye(offset + 4, left);
+        putEye(offset + 12, right);
+    }
+
+    private void putEye(int offset, PointF eye) {
+        mBuffer.putFloat(offset, eye == null ? Float.NaN : eye.x);
+        mBuffer.putFloat(offset + 4, eye == null ? Float.NaN : eye.y);
+    }
+}
@@ -63,9 +63,8 @@ import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -96,6 +95,7 @@ public final class GooglyEyesActivity extends AppCompatActivity {
     private CameraSourcePreview mPreview;
     private GraphicOverlay mGraphicOverlay;
     private boolean mIsFrontFacing = true;
+    private boolean mResumed;
 
     static {
         System.loadLibrary("native-lib");
@@ -115,6 +115,18 @@ public final class GooglyEyesActivity extends AppCompatActivity {
 
         mPreview = (CameraSourcePreview) findViewById(R.id.preview);
         mGraphicOverlay = (GraphicOverlay) findViewById(R.id.faceOverlay);
+        mGraphicOverlay.setPipelineStats(mStats);
+        mNativeStages = new NativeStageCounters(stageCountersFromJNI());
+        if (RECORD_FRAMES) {
+            File file = new File(getExternalFilesDir(null),
+                    "session-" + System.currentTimeMillis() + ".frames");
+            try {
+                mRecorder = new FrameRecorder(file, RECORDING_CAPACITY);
+                Log.d(TAG, "Recording frames to " + file);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to create the recording session.", e);
+            }
+        }
 
 
         final Button button = (Button) findViewById(R.id.flipButton);
@@ -171,6 +183,7 @@ public final class GooglyEyesActivity extends AppCompatActivity {
     @Override
     protected void onResume() {
         super.onResume();
+        mResumed = true;
 
         startCameraSource();
     }
@@ -181,6 +194,7 @@ public final class GooglyEyesActivity extends AppCompatActivity {
     @Override
     protected void onPause() {
         super.onPause();
+        mResumed = false;
         mPreview.stop();
     }
 
@@ -193,8 +207,15 @@ public final class GooglyEyesActivity extends AppCompatActivity {
         super.onDestroy();
         if (mCameraSource != null) {
             mCameraSource.release();
-            theThreadLeft.kill();
-            theThreadRight.kill();
+            mCameraSource = null;
+            mPupilExecutor.shutdown();
+        }
+        if (mRecorder != null) {
+            try {
+                mRecorder.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to close the recording session.", e);
+            }
         }
     }
 
@@ -264,14 +285,22 @@ public final class GooglyEyesActivity extends AppCompatActivity {
     private View.OnClickListener mFlipButtonListener = new View.OnClickListener() {
         public void onClick(View v) {
             mIsFrontFacing = !mIsFrontFacing;
+            restartCameraSource();
+        }
+    };
+
+    /**
+     * Restarts the camera in the preview mode chosen by the governor.  Posted by the detector
+     * thread, so it is skipped if the camera has been released in the meantime.
+     */
+    private final Runnable mPreviewModeListener = new Runnable() {
+        public void run() {
             if (mCameraSource != null) {
-                mCameraSource.release();
-                mCameraSource = null;
-                theThreadLeft.kill();
-                theThreadRight.kill();
+                PreviewGovernor.Mode mode = mPreviewGovernor.getMode();
+                Log.d(TAG, "Switching preview to " + mode.width + "x" + mode.height + " at "
+                        + mode.fps + " fps");
+                restartCameraSource();
             }
-            createCameraSource();
-            startCameraSource();
         }
     };
 
@@ -397,17 +426,76 @@ public final class GooglyEyesActivity extends AppCompatActivity {
         // but may miss smaller faces, landmarks, or may not correctly detect eyes open/closed in
         // comparison to using higher camera resolutions.  If you have any of these issues, you may
         // want to increase the resolution.
+        //
+        // The preview governor trades resolution and frame rate for latency at run time.
+        PreviewGovernor.Mode mode = mPreviewGovernor.getMode();
         mCameraSource = new CameraSource.Builder(context, detector1)
                 .setFacing(facing)
 /*----------------------------------------------------------------------------------------------*/
-                .setRequestedPreviewSize(320, 240) /* width, height */
-                .setRequestedFps(30.0f) //FPS number
+                .setRequestedPreviewSize(mode.width, mode.height) /* width, height */
+                .setRequestedFps(mode.fps) //FPS number
 /*----------------------------------------------------------------------------------------------*/
                 .setAutoFocusEnabled(true)
                 .build();
 
     }
 
+    /**
+     * Releases the camera and its processing pipeline, and creates them again, e.g. for another
+     * facing or preview mode.  The camera is only started while the activity is resumed, otherwise
+     * onResume starts it.
+     */
+    private void restartCameraSource() {
+        if (mCameraSource != null) {
+            mCameraSource.release();
+            mCameraSource = null;
+            mPupilExecutor.shutdown();
+        }
+        createCameraSource();
+        if (mResumed) {
+            startCameraSource();
+        }
+    }
+
+    /**
+     * Logs the median, 95th and 99th percentile latency of every pipeline stage, in milliseconds.
+     * Detector thread only.
+     */
+    private void logStats() {
+        StringBuilder line = new StringBuilder("Latency p50/p95/p99 ms:");
+        for (int stage = 0; stage < PipelineStats.STAGE_COUNT; ++stage) {
+            mStats.snapshot(stage, mStatsSnapshot);
+            line.append(' ').append(PipelineStats.getStageName(stage)).append(' ')
+                    .append(mStatsSnapshot.getPercentile(50) / 1000 / 1000.0f).append('/')
+                    .append(mStatsSnapshot.getPercentile(95) / 1000 / 1000.0f).append('/')
+                    .append(mStatsSnapshot.getPercentile(99) / 1000 / 1000.0f);
+        }
+        line.append(" stale pupils ").append(mStats.getCount(PipelineStats.COUNTER_STALE_PUPILS));
+        line.append(" pool skips ").append(mStats.getCount(PipelineStats.COUNTER_POOL_SKIPS));
+        line.append(" dropped jobs ").append(mStats.getCount(PipelineStats.COUNTER_DROPPED_JOBS));
+        Log.d(TAG, line.toString());
+
+        line.setLength(0);
+        line.append("Native mean/max us:");
+        for (int stage = 0; stage < NativeStageCounters.STAGE_COUNT; ++stage) {
+            line.append(' ').append(NativeStageCounters.getStageName(stage)).append(' ')
+                    .append(mNativeStages.getMeanNanos(stage) / 1000).append('/')
+                    .append(mNativeStages.getMaxNanos(stage) / 1000);
+        }
+        Log.d(TAG, line.toString());
+    }
+
+    /**
+     * Raises the publish latency reported to the preview governor with the next frame to the given
+     * one, if it is longer.  Called by the detector thread and the pupil workers.
+     */
+    private void recordPublishLatency(long latencyNanos) {
+        long current = mPublishLatency.get();
+        while (latencyNanos > current && !mPublishLatency.compareAndSet(current, latencyNanos)) {
+            current = mPublishLatency.get();
+        }
+    }
+
     /**
      * Starts or restarts the camera source, if it exists.  If the camera source doesn't exist yet
      * (e.g., because onResume was called before the camera source was created), this will be called
@@ -432,8 +520,7 @@ public final class GooglyEyesActivity extends AppCompatActivity {
                 Log.e(TAG, "Unable to start camera source.", e);
                 mCameraSource.release();
                 mCameraSource = null;
-                theThreadLeft.kill();
-                theThreadRight.kill();
+                mPupilExecutor.shutdown();
             }
         }
     }
@@ -441,27 +528,83 @@ public final class GooglyEyesActivity extends AppCompatActivity {
     /*-------------------------------------------------------------------------------------------
      This where declare our frame and coordinate variables to be sent to and received from the native side.
      --------------------------------------------------------------------------------------------*/
-    public volatile PointF leftEyeJNI, rightEyeJNI;
-    public volatile byte[] frameLeftJNI, frameRightJNI;
-    public volatile int frameWidth, frameHeight;
-    MyLeftWorkerThread theThreadLeft;
-    MyRightWorkerThread theThreadRight;
-    public volatile float[] leftEyePupil = {0.0f,0.0f};
-    public volatile float[] rightEyePupil = {0.0f,0.0f};
-
-    volatile float distanceBetweenEyes = 0.0f;
-
-    /**
-     * Updates the distance between two eyes. Necessary for the ROI calculations on the native side.
-     *
-      */
-    public void distanceUpdate(){
-        if(rightEyeJNI != null && leftEyeJNI != null) {
-            distanceBetweenEyes = (float) Math.sqrt(
-                    Math.pow(rightEyeJNI.x - leftEyeJNI.x, 2) +
-                            Math.pow(rightEyeJNI.y - leftEyeJNI.y, 2));
-        }
-    }
+    // Pupil refinement runs on a small pool of worker threads. The queue holds at most one job per
+    // eye, so it only needs room for both eyes of every face that is tracked at once. Beyond
+    // MAX_TRACKED_FACES faces, the oldest jobs are dropped.
+    private static final int MAX_TRACKED_FACES = 8;
+    private static final int PUPIL_THREAD_COUNT = 2;
+    private static final int PUPIL_QUEUE_CAPACITY = 2 * MAX_TRACKED_FACES;
+    private static final int PUPIL_MAX_BATCH = 16;
+    // The pupils of a face are located on every PUPIL_DETECTION_INTERVAL-th frame only, i.e. at
+    // that fraction of the camera frame rate. Their filters predict them on the other frames.
+    private static final int PUPIL_DETECTION_INTERVAL = 2;
+    // Pupils located on a frame that arrived longer ago than this are dropped rather than shown.
+    private static final long PUPIL_MAX_AGE_NANOS = 150000000L;
+    // Found pupils with a lower peak-to-second-peak confidence are ambiguous and rejected. Correct
+    // detections on synthetic eyes score above 0.2.
+    private static final float MIN_PUPIL_CONFIDENCE = 0.1f;
+    // The face detector runs on every FACE_DETECTION_INTERVAL-th frame, and on every frame while no
+    // face is found or an eye moves faster than FACE_MOTION_THRESHOLD pixels per frame. On the other
+    // frames the trackers extrapolate the eyes of the last detection. 1 runs it on every frame.
+    private static final int FACE_DETECTION_INTERVAL = 3;
+    private static final float FACE_MOTION_THRESHOLD = 4.0f;
+    // Locate pupils with the OpenCV code in native-lib.cpp, or with its pure Java port.
+    private static final boolean USE_NATIVE_PUPIL_LOCATOR = true;
+    // Erase specularities in the eye ROIs with the fast median clamp, or inpaint them like the
+    // original locator did. Applies to both locators.
+    private static final boolean FAST_SPECULAR_SUPPRESSION = true;
+    // Preview modes the governor chooses from, from the cheapest to the most expensive. It starts
+    // with 320x240 at 30 fps, and keeps the mean time from the arrival of a frame until its results
+    // are published to the overlay below the budget, judged over windows of PREVIEW_GOVERNOR_WINDOW
+    // frames. The budget covers the detector thread and the pupil workers with their queue.
+    private static final PreviewGovernor.Mode[] PREVIEW_MODES = {
+            new PreviewGovernor.Mode(240, 160, 15.0f),
+            new PreviewGovernor.Mode(320, 240, 15.0f),
+            new PreviewGovernor.Mode(320, 240, 30.0f),
+            new PreviewGovernor.Mode(640, 480, 30.0f),
+    };
+    private static final int DEFAULT_PREVIEW_MODE = 2;
+    private static final long PREVIEW_LATENCY_BUDGET_NANOS = 50000000L;
+    private static final int PREVIEW_GOVERNOR_WINDOW = 60;
+    private final PreviewGovernor mPreviewGovernor = new PreviewGovernor(PREVIEW_MODES,
+            DEFAULT_PREVIEW_MODE, PREVIEW_LATENCY_BUDGET_NANOS, PREVIEW_GOVERNOR_WINDOW);
+    // Longest time from the arrival of a frame until a result of it was published to the overlay,
+    // since the governor was last fed. Written by the detector thread and the pupil workers.
+    private final AtomicLong mPublishLatency = new AtomicLong();
+    // Latency of the pipeline stages, logged every STATS_LOG_INTERVAL frames.
+    private static final int STATS_LOG_INTERVAL = 300;
+    private final PipelineStats mStats = new PipelineStats();
+    private final LatencyHistogram.Snapshot mStatsSnapshot = new LatencyHistogram.Snapshot();
+    // Timings of the OpenCV steps inside the native pupil locator.
+    private NativeStageCounters mNativeStages;
+    // Appends every camera frame, with the detected eyes, to a session file in the app's external
+    // files directory, for offline analysis. RECORDING_CAPACITY bytes hold about 850 frames at
+    // 320x240.
+    private static final boolean RECORD_FRAMES = false;
+    private static final int RECORDING_CAPACITY = 64 * 1024 * 1024;
+    private FrameRecorder mRecorder;
+    // One buffer for the frame being filled and one for the latest frame. The faces submit their
+    // jobs on different frames, so every queued job may keep another frame alive, and each worker
+    // holds one more. Buffers are only grown when they are first used, so the unused part of the
+    // pool costs no pixels. Frames skipped anyway are counted in COUNTER_POOL_SKIPS.
+    private static final int FRAME_POOL_SIZE = 2 + PUPIL_QUEUE_CAPACITY + PUPIL_THREAD_COUNT;
+    private final LuminanceFramePool mFramePool = new LuminanceFramePool(FRAME_POOL_SIZE);
+    // Frame currently being processed by the detector thread, or null if it could not be copied.
+    private LuminanceFrame mCurrentFrame;
+    // Index of that frame, and whether its faces are the last detection repeated, so that the
+    // trackers have to extrapolate the eyes. Detector thread only.
+    private int mFrameIndex;
+    private boolean mExtrapolatedFrame;
+    // Camera frame id and arrival time of that frame, see System.nanoTime(). Detector thread only.
+    private int mFrameId;
+    private long mFrameArrivalNanos;
+    // Fastest eye of the last detection, in pixels per frame. Detector thread only.
+    private float mMaxEyeSpeed;
+    PupilExecutor mPupilExecutor;
+
+    // Trackers of the faces currently tracked, keyed by face id, so that pupil results can be routed
+    // back to the face they belong to. Guarded by itself.
+    private final SparseArray<GooglyFaceTracker> mFaceTrackers = new SparseArray<>();
 
 
     /*-------------------------------------------------------------------------------------------
@@ -469,34 +612,118 @@ public final class GooglyEyesActivity extends AppCompatActivity {
 
     class MyFaceDetector extends Detector<Face>{
         private Detector<Face> mDelegate;
+        // Faces of the last detection, and the index of its frame.
+        private SparseArray<Face> mLastFaces;
+        private int mDetectionIndex;
+        // Id of the last camera frame received, to count the frames the camera source dropped
+        // because the detector thread was still busy.
+        private int mLastFrameId = -1;
+        private long mLastArrivalNanos;
+        // Whether the pupil workers skip the current frame because the frame pool was exhausted.
+        private boolean mPoolSkipped;
 
         MyFaceDetector(Detector<Face> delegate) {
             mDelegate = delegate;
-            theThreadLeft = new MyLeftWorkerThread();
-            theThreadLeft.start();
-            theThreadRight = new MyRightWorkerThread();
-            theThreadRight.start();
+            mPupilExecutor = new PupilExecutor(PUPIL_THREAD_COUNT, PUPIL_QUEUE_CAPACITY,
+                    PUPIL_MAX_BATCH, USE_NATIVE_PUPIL_LOCATOR ? mPupilLocator : mJavaPupilLocator,
+                    mPupilListener);
+            mPupilExecutor.start();
         }
         public SparseArray<Face> detect(Frame frame) {
             //this is where we get the Frame.
-            frameHeight = frame.getMetadata().getHeight();
-            frameWidth = frame.getMetadata().getWidth();
-
-            if(frame.getGrayscaleImageData().hasArray()) {
-
-                // Note that the array size is width * height * 1.5 for raw YUV images. We only take
-                // the first 2/3 of the array, thus getting the gray scale (Y part) image without making any
-                // conversion.
-                // YUV 1 pixel layout = YYYY YYYY UVUV (12bit - 1.5 byte)
-                frameLeftJNI = Arrays.copyOf(frame.getGrayscaleImageData().array(),  frameHeight * frameWidth );
-                frameRightJNI = Arrays.copyOf(frame.getGrayscaleImageData().array(),  frameHeight * frameWidth );
+            long arrival = System.nanoTime();
+            if (mLastArrivalNanos != 0) {
+                mStats.record(PipelineStats.STAGE_FRAME_INTERVAL, arrival - mLastArrivalNanos);
+            }
+            mLastArrivalNanos = arrival;
+            mFrameId = frame.getMetadata().getId();
+            mFrameArrivalNanos = arrival;
+            ByteBuffer yuv = frame.getGrayscaleImageData();
+
+            mCurrentFrame = null;
+            mPoolSkipped = false;
+            if(yuv.hasArray()) {
+                // All pupil jobs of this frame read the same snapshot, taken from a recycled buffer. If
+                // every buffer is still held by a worker, pupil refinement skips this frame.
+                LuminanceFrame luminance = mFramePool.obtain();
+                if (luminance != null) {
+                    // Note that the array size is width * height * 1.5 for raw YUV images. We only take
+                    // the first 2/3 of the array, thus getting the gray scale (Y part) image without making any
+                    // conversion.
+                    // YUV 1 pixel layout = YYYY YYYY UVUV (12bit - 1.5 byte)
+                    long start = System.nanoTime();
+                    luminance.fill(yuv.array(), frame.getMetadata().getWidth(),
+                            frame.getMetadata().getHeight(), mFrameId,
+                            frame.getMetadata().getTimestampMillis(), arrival);
+                    mStats.record(PipelineStats.STAGE_BUFFER_COPY, System.nanoTime() - start);
+                    mFramePool.publish(luminance);
+                    // The pool keeps the frame alive until the next one is published, which is after
+                    // the trackers of this frame have submitted their jobs.
+                    mCurrentFrame = luminance;
+                } else {
+                    mStats.count(PipelineStats.COUNTER_POOL_SKIPS, 1);
+                    mPoolSkipped = true;
+                }
             }
 
-            // activates the threads
-                theThreadLeft.AddFrameEvent();
-                theThreadRight.AddFrameEvent();
+            ++mFrameIndex;
+            mExtrapolatedFrame = mLastFaces != null && mLastFaces.size() > 0
+                    && mFrameIndex - mDetectionIndex < FACE_DETECTION_INTERVAL
+                    && mMaxEyeSpeed <= FACE_MOTION_THRESHOLD;
+            if (!mExtrapolatedFrame) {
+                // The trackers measure the eye speed again while processing this detection.
+                mMaxEyeSpeed = 0;
+                mDetectionIndex = mFrameIndex;
+                long start = System.nanoTime();
+                mLastFaces = mDelegate.detect(frame);
+                mStats.record(PipelineStats.STAGE_FACE_DETECTION, System.nanoTime() - start);
+                mStats.count(PipelineStats.COUNTER_FACE_DETECTIONS, 1);
+            }
+            if (mRecorder != null && yuv.hasArray()) {
+                long start = System.nanoTime();
+                mRecorder.record(yuv.array(), frame.getMetadata().getWidth(),
+                        frame.getMetadata().getHeight(), mFrameId,
+                        frame.getMetadata().getTimestampMillis(), mFrameArrivalNanos,
+                        frame.getMetadata().getRotation(),
+                        mExtrapolatedFrame ? FrameRecorder.FLAG_EXTRAPOLATED : 0, mLastFaces);
+                mStats.record(PipelineStats.STAGE_RECORD, System.nanoTime() - start);
+            }
+            if (mFrameIndex % STATS_LOG_INTERVAL == 0) {
+                logStats();
+            }
+            return mLastFaces;
+        }
 
-            return mDelegate.detect(frame);
+        /**
+         * Measures the time the detector thread spends on each frame, detection and trackers
+         * included.  Reports the end-to-end latency to the preview governor: the longest time from
+         * the arrival of a frame until a result of it was published to the overlay, among the
+         * results published since the previous frame, by this thread or by the pupil workers.
+         * Counts as dropped the camera frames the source dropped, this frame if the pupil workers
+         * skip it, and the pupil jobs the executor dropped unrun, since all of them mean that the
+         * pipeline cannot keep up.
+         */
+        @Override
+        public void receiveFrame(Frame frame) {
+            long start = System.nanoTime();
+            super.receiveFrame(frame);
+            long end = System.nanoTime();
+            long latency = end - start;
+            // Frames without faces publish nothing, and are done when the detector is.
+            long publishLatency = Math.max(end - mFrameArrivalNanos, mPublishLatency.getAndSet(0));
+
+            int id = frame.getMetadata().getId();
+            int dropped = mLastFrameId < 0 ? 0 : Math.max(0, id - mLastFrameId - 1);
+            mLastFrameId = id;
+            mStats.record(PipelineStats.STAGE_FRAME_LATENCY, latency);
+            mStats.count(PipelineStats.COUNTER_CAMERA_FRAMES, 1 + dropped);
+            mStats.count(PipelineStats.COUNTER_DROPPED_FRAMES, dropped);
+            int droppedJobs = mPupilExecutor.takeDroppedJobs();
+            mStats.count(PipelineStats.COUNTER_DROPPED_JOBS, droppedJobs);
+            if (mPreviewGovernor.onFrame(publishLatency,
+                    dropped + (mPoolSkipped ? 1 : 0) + droppedJobs)) {
+                runOnUiThread(mPreviewModeListener);
+            }
         }
 
         public boolean isOperational() {
@@ -510,8 +737,11 @@ public final class GooglyEyesActivity extends AppCompatActivity {
     }
 
     public volatile GraphicOverlay mOverlay;
-    public volatile GooglyEyesGraphic mEyesGraphic;
 
+    /**
+     * Tracks one face and keeps its own eye positions, pupil estimates and graphic, so that in rear
+     * facing mode every face gets its pupils refined independently.
+     */
     class GooglyFaceTracker extends Tracker<Face> {
         private static final float EYE_CLOSED_THRESHOLD = 0.0f;
 
@@ -519,14 +749,43 @@ public final class GooglyEyesActivity extends AppCompatActivity {
         // Record the previously seen proportions of the landmark locations relative to the bounding box
         // of the face.  These proportions can be used to approximate where the landmarks are within the
         // face bounding box if the eye landmark is missing in a future update.
-        private Map<Integer, PointF> mPreviousProportions = new HashMap<>();
+        private final LandmarkProportions mPreviousProportions = new LandmarkProportions();
 
         // Similarly, keep track of the previous eye open state so that it can be reused for
         // intermediate frames which lack eye landmarks and corresponding eye state.
         private boolean mPreviousIsLeftOpen = true;
         private boolean mPreviousIsRightOpen = true;
 
-
+        private int mFaceId = -1;
+        private volatile GooglyEyesGraphic mEyesGraphic;
+
+        /* -----------------------------------------------------------------------------*
+        /   Eye positions of the latest detection and the pupil positions refined from them.
+        /   The pupils are only touched while holding this tracker.
+        */
+        public volatile PointF leftEyeJNI, rightEyeJNI;
+        volatile float distanceBetweenEyes = 0.0f;
+        private final float[] leftEyePupil = {0.0f,0.0f};
+        private final float[] rightEyePupil = {0.0f,0.0f};
+        // Whether the pupil of each eye is known, indexed by PupilExecutor.LEFT_EYE and RIGHT_EYE.
+        private final boolean[] mHasPupils = {false, false};
+        // Smoothed pupil trajectories, guarded by this tracker.
+        private final PupilFilter mLeftFilter = new PupilFilter();
+        private final PupilFilter mRightFilter = new PupilFilter();
+        // Camera frame id of the last pupil taken per eye, guarded by this tracker.
+        private final int[] mLastPupilFrames = {-1, -1};
+        // Number of updates the pupils were or could have been located on, detector thread only.
+        private int mPupilUpdateCount;
+        // x, y and velocity in pixels per frame of the left and then the right eye at the last
+        // detection, and the index of that frame or -1. Detector thread only.
+        private final float[] mEyeMotion = new float[8];
+        private int mEyeMotionFrame = -1;
+        // Reused for the extrapolated eyes, detector thread only.
+        private final PointF mExtrapolatedLeft = new PointF();
+        private final PointF mExtrapolatedRight = new PointF();
+        // Reused for the detected or approximated eyes, detector thread only.
+        private final PointF mLandmarkLeft = new PointF();
+        private final PointF mLandmarkRight = new PointF();
         //==============================================================================================
         // Methods
         //==============================================================================================
@@ -540,7 +799,21 @@ public final class GooglyEyesActivity extends AppCompatActivity {
          */
         @Override
         public void onNewItem(int id, Face face) {
-            mEyesGraphic = new GooglyEyesGraphic(mOverlay);
+            mEyesGraphic = new GooglyEyesGraphic(mOverlay, mStats);
+            synchronized (this) {
+                mLeftFilter.reset();
+                mRightFilter.reset();
+                mLastPupilFrames[PupilExecutor.LEFT_EYE] = -1;
+                mLastPupilFrames[PupilExecutor.RIGHT_EYE] = -1;
+            }
+            synchronized (mFaceTrackers) {
+                // In front facing mode the same tracker is reused for every new prominent face.
+                if (mFaceId != -1) {
+                    mFaceTrackers.remove(mFaceId);
+                }
+                mFaceId = id;
+                mFaceTrackers.put(id, this);
+            }
         }
 
         /**
@@ -552,10 +825,24 @@ public final class GooglyEyesActivity extends AppCompatActivity {
         public void onUpdate(FaceDetector.Detections<Face> detectionResults, Face face) {
             mOverlay.add(mEyesGraphic);
 
-            updatePreviousProportions(face);
-
-            PointF leftPosition = getLandmarkPosition(face, Landmark.LEFT_EYE);
-            PointF rightPosition = getLandmarkPosition(face, Landmark.RIGHT_EYE);
+            PointF leftPosition;
+            PointF rightPosition;
+            if (mExtrapolatedFrame && mEyeMotionFrame >= 0) {
+                // The face detector skipped this frame, continue the eyes' last motion.
+                leftPosition = extrapolateEye(0);
+                rightPosition = extrapolateEye(1);
+            } else {
+                // The face computes a new point on every call.
+                PointF facePosition = face.getPosition();
+                updatePreviousProportions(face, facePosition);
+                leftPosition = getLandmarkPosition(face, facePosition, Landmark.LEFT_EYE,
+                        mLandmarkLeft);
+                rightPosition = getLandmarkPosition(face, facePosition, Landmark.RIGHT_EYE,
+                        mLandmarkRight);
+                if (!mExtrapolatedFrame) {
+                    recordEyes(leftPosition, rightPosition);
+                }
+            }
 
             /* -----------------------------------------------------------------------------*
             /   We get the positions updated with each frame that tracker detects
@@ -564,6 +851,13 @@ public final class GooglyEyesActivity extends AppCompatActivity {
             rightEyeJNI = rightPosition;
             distanceUpdate();
 
+            // Queues pupil refinement for the frame these landmarks were detected on.
+            LuminanceFrame frame = mCurrentFrame;
+            if (frame != null && leftPosition != null && rightPosition != null
+                    && mPupilUpdateCount++ % PUPIL_DETECTION_INTERVAL == 0) {
+                submitPupilJobs(frame, leftPosition, rightPosition);
+            }
+
             float leftOpenScore = face.getIsLeftEyeOpenProbability();
             boolean isLeftOpen;
                 isLeftOpen = (leftOpenScore > EYE_CLOSED_THRESHOLD);
@@ -574,7 +868,10 @@ public final class GooglyEyesActivity extends AppCompatActivity {
                 isRightOpen = (rightOpenScore > EYE_CLOSED_THRESHOLD);
                 mPreviousIsRightOpen = isRightOpen;
 
-            mEyesGraphic.updateEyes(leftPosition, isLeftOpen, rightPosition, isRightOpen);
+            mEyesGraphic.updateEyes(mFrameId, mFrameArrivalNanos, leftPosition, isLeftOpen,
+                    rightPosition, isRightOpen);
+            showPupils(System.nanoTime());
+            recordPublishLatency(System.nanoTime() - mFrameArrivalNanos);
 
 
         }
@@ -596,168 +893,235 @@ public final class GooglyEyesActivity extends AppCompatActivity {
         @Override
         public void onDone() {
             mOverlay.remove(mEyesGraphic);
+            synchronized (mFaceTrackers) {
+                if (mFaceTrackers.get(mFaceId) == this) {
+                    mFaceTrackers.remove(mFaceId);
+                }
+            }
+        }
+
+        /**
+         * Takes a refined pupil of this face. Called on the pupil worker threads.  Pupils of a frame
+         * older than the last one taken for the eye, which a slower worker may deliver late, and
+         * pupils older than PUPIL_MAX_AGE_NANOS are dropped.  The others are filtered at the time
+         * their frame arrived, so the filter re-projects them to the present.  Dropped pupils count
+         * towards the publish latency as well, since they arrived too late to be shown.
+         */
+        synchronized void onPupilLocated(PupilExecutor.Job job) {
+            long now = System.nanoTime();
+            LuminanceFrame frame = job.frame;
+            if (frame.getId() <= mLastPupilFrames[job.side]
+                    || now - frame.getArrivalNanos() > PUPIL_MAX_AGE_NANOS) {
+                mStats.count(PipelineStats.COUNTER_STALE_PUPILS, 1);
+                recordPublishLatency(now - frame.getArrivalNanos());
+                return;
+            }
+            mLastPupilFrames[job.side] = frame.getId();
+            boolean left = job.side == PupilExecutor.LEFT_EYE;
+            float[] pupil = left ? leftEyePupil : rightEyePupil;
+            PupilFilter filter = left ? mLeftFilter : mRightFilter;
+            if (updatePupil(pupil, mHasPupils, job)) {
+                filter.correct(frame.getArrivalNanos(), job.pupilX, job.pupilY, job.confidence);
+            } else if (!mHasPupils[job.side]) {
+                // the pupil was dropped, start over with the next detection
+                filter.reset();
+            }
+            // publishes the pupils, which requests a redraw to show the latest detection results on the screen (dots)
+            showPupils(now);
+            recordPublishLatency(System.nanoTime() - frame.getArrivalNanos());
         }
 
         //==============================================================================================
         // Private
         //==============================================================================================
 
-        private void updatePreviousProportions(Face face) {
-            for (Landmark landmark : face.getLandmarks()) {
-                PointF position = landmark.getPosition();
-                float xProp = (position.x - face.getPosition().x) / face.getWidth();
-                float yProp = (position.y - face.getPosition().y) / face.getHeight();
-                mPreviousProportions.put(landmark.getType(), new PointF(xProp, yProp));
-            }
-        }
-
         /**
-         * Finds a specific landmark position, or approximates the position based on past observations
-         * if it is not present.
+         * Remembers the eyes of a face detection, and their velocity since the previous one.
          */
-        private PointF getLandmarkPosition(Face face, int landmarkId) {
-            for (Landmark landmark : face.getLandmarks()) {
-                if (landmark.getType() == landmarkId) {
-                    return landmark.getPosition();
-                }
+        private void recordEyes(PointF leftPosition, PointF rightPosition) {
+            if (leftPosition == null || rightPosition == null) {
+                mEyeMotionFrame = -1;
+                return;
             }
-
-            PointF prop = mPreviousProportions.get(landmarkId);
-            if (prop == null) {
-                return null;
+            int frames = mFrameIndex - mEyeMotionFrame;
+            boolean hasPrevious = mEyeMotionFrame >= 0 && frames > 0;
+            for (int eye = 0; eye < 2; ++eye) {
+                PointF position = eye == 0 ? leftPosition : rightPosition;
+                int i = 4 * eye;
+                float vx = hasPrevious ? (position.x - mEyeMotion[i]) / frames : 0.0f;
+                float vy = hasPrevious ? (position.y - mEyeMotion[i + 1]) / frames : 0.0f;
+                mEyeMotion[i] = position.x;
+                mEyeMotion[i + 1] = position.y;
+                mEyeMotion[i + 2] = vx;
+                mEyeMotion[i + 3] = vy;
+                mMaxEyeSpeed = Math.max(mMaxEyeSpeed, (float) Math.sqrt(vx * vx + vy * vy));
             }
+            mEyeMotionFrame = mFrameIndex;
+        }
 
-            float x = face.getPosition().x + (prop.x * face.getWidth());
-            float y = face.getPosition().y + (prop.y * face.getHeight());
-            return new PointF(x, y);
+        /**
+         * Extrapolates the left (0) or right (1) eye of the last detection to the current frame.
+         * Returns a point that is reused on the next frame.
+         */
+        private PointF extrapolateEye(int eye) {
+            int frames = mFrameIndex - mEyeMotionFrame;
+            int i = 4 * eye;
+            PointF position = eye == 0 ? mExtrapolatedLeft : mExtrapolatedRight;
+            position.x = mEyeMotion[i] + mEyeMotion[i + 2] * frames;
+            position.y = mEyeMotion[i + 1] + mEyeMotion[i + 3] * frames;
+            return position;
         }
-    }
 
-    public class MyLeftWorkerThread extends Thread{
-        private boolean runWorkerThread;
-        private boolean isFrameWaiting;
-        private float[] tempFloatArray;
-        public MyLeftWorkerThread(){
-            super();
-            runWorkerThread = true;
+        /**
+         * Shows the filtered pupils, extrapolated to the given time, together with the latest eyes.
+         */
+        private synchronized void showPupils(long nanos) {
+            mEyesGraphic.updatePupils(mLeftFilter.isInitialized(), mLeftFilter.predictX(nanos),
+                    mLeftFilter.predictY(nanos), mRightFilter.isInitialized(),
+                    mRightFilter.predictX(nanos), mRightFilter.predictY(nanos));
         }
-        public void AddFrameEvent(){
 
-            synchronized (this) {
-                isFrameWaiting = true;
+        /**
+         * Queues both eyes together, so that one worker locates them in one batch, with the current
+         * pupils as the starting point of the search.
+         */
+        private synchronized void submitPupilJobs(LuminanceFrame frame, PointF leftPosition,
+                                                  PointF rightPosition) {
+            PupilExecutor executor = mPupilExecutor;
+            synchronized (executor) {
+                executor.submit(frame, mFaceId, PupilExecutor.LEFT_EYE, leftPosition.x,
+                        leftPosition.y, distanceBetweenEyes, mHasPupils[PupilExecutor.LEFT_EYE],
+                        leftEyePupil[0], leftEyePupil[1]);
+                executor.submit(frame, mFaceId, PupilExecutor.RIGHT_EYE, rightPosition.x,
+                        rightPosition.y, distanceBetweenEyes, mHasPupils[PupilExecutor.RIGHT_EYE],
+                        rightEyePupil[0], rightEyePupil[1]);
             }
         }
-        public boolean TakeFrameEvent(){
-            synchronized (this){
-                boolean temp = isFrameWaiting;
-                isFrameWaiting= false;
-                return temp;
+
+        /**
+         * Updates the distance between two eyes. Necessary for the ROI calculations on the native side.
+         *
+          */
+        private void distanceUpdate(){
+            if(rightEyeJNI != null && leftEyeJNI != null) {
+                float dx = rightEyeJNI.x - leftEyeJNI.x;
+                float dy = rightEyeJNI.y - leftEyeJNI.y;
+                distanceBetweenEyes = (float) Math.sqrt(dx * dx + dy * dy);
             }
         }
-        public  void kill (){
-            runWorkerThread = false;
+
+        private void updatePreviousProportions(Face face, PointF facePosition) {
+            // Indexed, so that no iterator is created.
+            List<Landmark> landmarks = face.getLandmarks();
+            for (int i = 0; i < landmarks.size(); ++i) {
+                Landmark landmark = landmarks.get(i);
+                PointF position = landmark.getPosition();
+                mPreviousProportions.record(landmark.getType(), position.x, position.y,
+                        facePosition.x, facePosition.y, face.getWidth(), face.getHeight());
+            }
         }
 
-        @Override
-        public void run() {
-            while (runWorkerThread){
-                    if(TakeFrameEvent()){
-                            if(leftEyeJNI != null) {
-                                tempFloatArray =leftEyeFromJNI(frameLeftJNI, leftEyeJNI.x, leftEyeJNI.y, frameHeight, frameWidth, distanceBetweenEyes);
-                                //if detections does not fail, update
-                                if(tempFloatArray[0] != 0.0f && tempFloatArray[1] != 0.0f){
-                                    leftEyePupil = tempFloatArray;
-                                } else if (Math.abs(leftEyePupil[0] - leftEyeJNI.x) > 30  ){
-                                    leftEyePupil[0] = 0.0f;
-                                }
-                                mEyesGraphic.updateLeftPupil(new PointF(leftEyePupil[0], leftEyePupil[1]));
-                                // triggers a redraw to update the overlay to show the latest detection results on the screen (dots)
-                                mEyesGraphic.postInvalidate();
-                            } else{
-                                try {
-                                    Thread.sleep(5);
-                                } catch (Exception e){
-                                    e.printStackTrace();
-                                }
-                            }
-                    }
+        /**
+         * Finds a specific landmark position, or approximates the position based on past observations
+         * if it is not present.  Returns the given point, set to the position, or null.
+         */
+        private PointF getLandmarkPosition(Face face, PointF facePosition, int landmarkId,
+                                           PointF result) {
+            List<Landmark> landmarks = face.getLandmarks();
+            for (int i = 0; i < landmarks.size(); ++i) {
+                Landmark landmark = landmarks.get(i);
+                if (landmark.getType() == landmarkId) {
+                    PointF position = landmark.getPosition();
+                    result.set(position.x, position.y);
+                    return result;
+                }
+            }
 
+            if (!mPreviousProportions.has(landmarkId)) {
+                return null;
             }
+            result.x = mPreviousProportions.getX(landmarkId, facePosition.x, face.getWidth());
+            result.y = mPreviousProportions.getY(landmarkId, facePosition.y, face.getHeight());
+            return result;
         }
     }
 
-    public class MyRightWorkerThread extends Thread {
-        private boolean runWorkerThread;
-        private int counter; // this is for debugging only.
-        private long starttime, endtime;
-        private boolean isFrameWaiting;
-        private float[]  tempFloatArray;
-
-        public MyRightWorkerThread() {
-            super();
-            runWorkerThread = true;
-            counter = 0;
-            starttime = 0;
+    /**
+     * Runs a batch of pupil jobs through the native locator.
+     */
+    private final PupilExecutor.Locator mPupilLocator = new PupilExecutor.Locator() {
+        @Override
+        public void locatePupils(LuminanceFrame frame, float[] eyes, int count, float[] pupils) {
+            locatePupilsFromJNI(frame.getBuffer(), frame.getHeight(), frame.getWidth(), eyes, count, pupils,
+                    FAST_SPECULAR_SUPPRESSION);
         }
+    };
 
-        public void AddFrameEvent() {
-                synchronized (this){
-                    isFrameWaiting = true;
-                }
+    /**
+     * Runs a batch of pupil jobs through {@link EyeCenterLocator}, with one instance per worker
+     * thread.
+     */
+    private final PupilExecutor.Locator mJavaPupilLocator = new PupilExecutor.Locator() {
+        private final ThreadLocal<EyeCenterLocator> mLocators = new ThreadLocal<EyeCenterLocator>() {
+            @Override
+            protected EyeCenterLocator initialValue() {
+                return new EyeCenterLocator(FAST_SPECULAR_SUPPRESSION);
+            }
+        };
+
+        @Override
+        public void locatePupils(LuminanceFrame frame, float[] eyes, int count, float[] pupils) {
+            mLocators.get().locatePupils(frame.getBuffer(), frame.getHeight(), frame.getWidth(),
+                    eyes, count, pupils);
         }
+    };
 
-        public boolean TakeFrameEvent(){
-            synchronized (this) {
-                boolean temp = isFrameWaiting;
-                isFrameWaiting = false;
-                return temp;
+    /**
+     * Routes refined pupil positions to the tracker of their face. Results for faces that are no
+     * longer tracked are dropped. Called on the pupil worker threads.
+     */
+    private final PupilExecutor.Listener mPupilListener = new PupilExecutor.Listener() {
+        @Override
+        public void onPupilLocated(PupilExecutor.Job job) {
+            boolean left = job.side == PupilExecutor.LEFT_EYE;
+            mStats.record(left ? PipelineStats.STAGE_LEFT_PUPIL : PipelineStats.STAGE_RIGHT_PUPIL,
+                    (long) (job.locateMicros * 1000));
+            mStats.count(left ? PipelineStats.COUNTER_LEFT_PUPILS
+                    : PipelineStats.COUNTER_RIGHT_PUPILS, 1);
+            GooglyFaceTracker tracker;
+            synchronized (mFaceTrackers) {
+                tracker = mFaceTrackers.get(job.faceId);
+            }
+            if (tracker != null) {
+                tracker.onPupilLocated(job);
             }
         }
-        public  void kill (){
-            runWorkerThread = false;
-        }
-        @Override
-        public void run(){
-            while (runWorkerThread){
-                if(TakeFrameEvent()) {
-                    if (rightEyeJNI != null){
-                        if(starttime == 0){
-                            starttime = SystemClock.currentThreadTimeMillis();
-                        }
-
-                        counter++;
-                        tempFloatArray = rightEyeFromJNI(frameRightJNI, rightEyeJNI.x, rightEyeJNI.y, frameHeight, frameWidth, distanceBetweenEyes);
-                        //if detection does not fail, update the position
-                        if(tempFloatArray[0] != 0.0f && tempFloatArray[1] != 0.0f){
-                            rightEyePupil = tempFloatArray;
-
-                        } else if(Math.abs(rightEyePupil[0] - rightEyeJNI.x) > 30){
-                            rightEyePupil[0] = 0.0f;
-                        }
-                        mEyesGraphic.updateRightPupil(new PointF(rightEyePupil[0], rightEyePupil[1]));
-                        mEyesGraphic.postInvalidate();
-                        if (counter == 1) {
-                            endtime = SystemClock.currentThreadTimeMillis() - starttime;
-                            counter = 0;
-                            endtime = 0;
-                            starttime = 0;
-                        }
-                    }
+    };
 
-                }
-                else{
-                    try {
-                        Thread.sleep(5);
-                    } catch (Exception e){
-                        e.printStackTrace();
-                    }
-                }
-            }
+    /**
+     * Decides from the job's status and confidence what happens to the last pupil of its eye.
+     * Takes the job's pupil and returns true if it was found with at least MIN_PUPIL_CONFIDENCE.
+     * Keeps the last pupil if the detection failed or was ambiguous, and forgets it if the eye left
+     * the frame.  hasPupils tells per side whether the pupil is known.
+     */
+    static boolean updatePupil(float[] pupil, boolean[] hasPupils, PupilExecutor.Job job) {
+        if (job.status == PupilExecutor.STATUS_FOUND && job.confidence >= MIN_PUPIL_CONFIDENCE) {
+            pupil[0] = job.pupilX;
+            pupil[1] = job.pupilY;
+            hasPupils[job.side] = true;
+            return true;
         }
+        if (job.status == PupilExecutor.STATUS_OUT_OF_BOUNDS) {
+            hasPupils[job.side] = false;
+        }
+        return false;
     }
 
-
-    public native float[] leftEyeFromJNI(byte[] frame, float leftX, float leftY, int height, int width, float distance);
-    public native float[] rightEyeFromJNI(byte[] frame, float rightX, float rightY, int height, int width, float distance);
+    // Batched native locator, see PupilExecutor.Locator.  Throws IllegalArgumentException if frame
+    // is not a direct buffer.
+    public native void locatePupilsFromJNI(ByteBuffer frame, int height, int width, float[] eyes, int count, float[] pupils,
+                                           boolean fastSpecular);
+    // Stage counters of the native locator, see NativeStageCounters.
+    public native ByteBuffer stageCountersFromJNI();
 }
 
@@ -25,34 +25,86 @@ import android.graphics.PointF;
 import com.google.android.gms.samples.vision.face.googlyeyes.ui.camera.GraphicOverlay;
 
 import java.util.Timer;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * Graphics class for rendering Googly Eyes on a graphic overlay given the current eye positions.
+ * Graphics class for rendering Googly Eyes on a graphic overlay given the current eye positions.<p>
+ *
+ * The detector thread and the pupil workers edit one eye state under the graphic's lock, and
+ * publish a copy of it after every change.  The copies are triple buffered in reused slots, which
+ * are exchanged through a single atomic reference, so the renderer always draws one consistent,
+ * frame-stamped state without locking, and neither side allocates.
  */
 class GooglyEyesGraphic extends GraphicOverlay.Graphic {
     private static final float EYE_ROI_PROPORTION_WIDTH = 0.40f;
     private static final float EYE_ROI_PROPORTION_HEIGHT = 0.30f;
+    private static final float PUPIL_RADIUS = 9.0f;
 
     private Paint mEyeIrisPaint;
     private Paint mEyeOutlinePaint;
     private Paint mEyeLidPaint;
 
+    /**
+     * Eye and pupil positions in preview coordinates, of the camera frame with the given id, which
+     * arrived at captureNanos.
+     */
+    private static final class EyeState {
+        long frame;
+        long captureNanos;
+        boolean hasEyes;
+        float leftX;
+        float leftY;
+        boolean leftOpen;
+        float rightX;
+        float rightY;
+        boolean rightOpen;
+
+        boolean hasLeftPupil;
+        float leftPupilX;
+        float leftPupilY;
+        boolean hasRightPupil;
+        float rightPupilX;
+        float rightPupilY;
+
+        // Published and not yet taken by the renderer.
+        volatile boolean fresh;
+
+        void set(EyeState other) {
+            frame = other.frame;
+            captureNanos = other.captureNanos;
+            hasEyes = other.hasEyes;
+            leftX = other.leftX;
+            leftY = other.leftY;
+            leftOpen = other.leftOpen;
+            rightX = other.rightX;
+            rightY = other.rightY;
+            rightOpen = other.rightOpen;
+            hasLeftPupil = other.hasLeftPupil;
+            leftPupilX = other.leftPupilX;
+            leftPupilY = other.leftPupilY;
+            hasRightPupil = other.hasRightPupil;
+            rightPupilX = other.rightPupilX;
+            rightPupilY = other.rightPupilY;
+        }
+    }
 
-    public volatile PointF mLeftPosition;
-    private volatile boolean mLeftOpen;
-
-    public volatile PointF mRightPosition;
-    private volatile boolean mRightOpen;
-
-    public volatile PointF mLeftPupil;
-    public volatile PointF mRightPupil;
+    // State being edited, and the slot the next publication is copied into.  Guarded by this.
+    private final EyeState mState = new EyeState();
+    private EyeState mBack = new EyeState();
+    // Slot exchanged between the writers and the renderer.
+    private final AtomicReference<EyeState> mPublished = new AtomicReference<>(new EyeState());
+    // Slot being drawn, and the last frame whose latency was recorded.  UI thread only.
+    private EyeState mFront = new EyeState();
+    private long mRenderedFrame = -1;
+    private final PipelineStats mStats;
 
     //==============================================================================================
     // Methods
     //==============================================================================================
 
-    GooglyEyesGraphic(GraphicOverlay overlay) {
+    GooglyEyesGraphic(GraphicOverlay overlay, PipelineStats stats) {
         super(overlay);
+        mStats = stats;
 
         mEyeLidPaint = new Paint();
         mEyeLidPaint.setColor(Color.BLUE);
@@ -71,26 +123,52 @@ class GooglyEyesGraphic extends GraphicOverlay.Graphic {
 
 
     /**
-     * Updates the eye positions and state from the detection of the most recent frame.  Invalidates
-     * the relevant portions of the overlay to trigger a redraw.
+     * Updates the eye positions and state from the detection of the camera frame with the given id,
+     * which arrived at captureNanos, see System.nanoTime().  The positions are copied, and the eyes
+     * are hidden if either of them is null.  The change is published with the next
+     * {@link #updatePupils}, so that the eyes of a frame are shown together with the pupils
+     * predicted for it.
      */
-    void updateEyes(PointF leftPosition, boolean leftOpen,
-                    PointF rightPosition, boolean rightOpen) {
-        mLeftPosition = leftPosition;
-        mLeftOpen = leftOpen;
-
-        mRightPosition = rightPosition;
-        mRightOpen = rightOpen;
+    synchronized void updateEyes(long frame, long captureNanos, PointF leftPosition,
+                                 boolean leftOpen, PointF rightPosition, boolean rightOpen) {
+        mState.frame = frame;
+        mState.captureNanos = captureNanos;
+        mState.hasEyes = leftPosition != null && rightPosition != null;
+        if (mState.hasEyes) {
+            mState.leftX = leftPosition.x;
+            mState.leftY = leftPosition.y;
+            mState.rightX = rightPosition.x;
+            mState.rightY = rightPosition.y;
+        }
+        mState.leftOpen = leftOpen;
+        mState.rightOpen = rightOpen;
+    }
 
-       postInvalidate();
+    /**
+     * Updates the pupil positions, publishes the state and requests a redraw of the overlay.  A
+     * pupil that is not given is hidden until it is given again, for example after its filter was
+     * reset.
+     */
+    void updatePupils(boolean hasLeft, float leftX, float leftY,
+                      boolean hasRight, float rightX, float rightY) {
+        synchronized (this) {
+            mState.hasLeftPupil = hasLeft;
+            if (hasLeft) {
+                mState.leftPupilX = leftX;
+                mState.leftPupilY = leftY;
+            }
+            mState.hasRightPupil = hasRight;
+            if (hasRight) {
+                mState.rightPupilX = rightX;
+                mState.rightPupilY = rightY;
+            }
+            mBack.set(mState);
+            mBack.fresh = true;
+            mBack = mPublished.getAndSet(mBack);
+        }
 
-    }
+       requestRedraw();
 
-    void updateLeftPupil(PointF leftPupil){
-        mLeftPupil = leftPupil;
-    }
-    void updateRightPupil(PointF rightPupil){
-        mRightPupil = rightPupil;
     }
 
     /**
@@ -99,62 +177,73 @@ class GooglyEyesGraphic extends GraphicOverlay.Graphic {
      */
     @Override
     public void draw(Canvas canvas) {
-        PointF detectLeftPosition = mLeftPosition;
-        PointF detectRightPosition = mRightPosition;
-        if ((detectLeftPosition == null) || (detectRightPosition == null)) {
+        if (mPublished.get().fresh) {
+            // Take the latest state and hand the one drawn before back to the writers.
+            mFront = mPublished.getAndSet(mFront);
+            mFront.fresh = false;
+        }
+        EyeState state = mFront;
+        if (!state.hasEyes) {
             return;
         }
+        if (state.frame != mRenderedFrame) {
+            // First draw of this frame, which completes its way from the camera to the screen.
+            mRenderedFrame = state.frame;
+            mStats.record(PipelineStats.STAGE_CAPTURE_TO_RENDER,
+                    System.nanoTime() - state.captureNanos);
+        }
 
-        PointF leftPosition =
-                new PointF(translateX(detectLeftPosition.x), translateY(detectLeftPosition.y));
-        PointF rightPosition =
-                new PointF(translateX(detectRightPosition.x), translateY(detectRightPosition.y));
+        // The mapping to view coordinates is affine, so it is evaluated once per draw rather than
+        // once per coordinate.
+        float originX = translateX(0.0f);
+        float unitX = translateX(1.0f) - originX;
+        float unitY = scaleY(1.0f);
 
-        if(mLeftPupil != null) {
-            PointF leftPupilPosition =
-                    new PointF(translateX(mLeftPupil.x), translateY(mLeftPupil.y));
-            drawPupil(canvas, leftPupilPosition);
+        if (state.hasLeftPupil) {
+            drawPupil(canvas, originX + unitX * state.leftPupilX, unitY * state.leftPupilY);
         }
 
-        if(mRightPupil != null) {
-            PointF rightPupilPosition =
-                    new PointF(translateX(mRightPupil.x), translateY(mRightPupil.y));
-            drawPupil(canvas, rightPupilPosition);
+        if (state.hasRightPupil) {
+            drawPupil(canvas, originX + unitX * state.rightPupilX, unitY * state.rightPupilY);
         }
 
+        float leftX = originX + unitX * state.leftX;
+        float leftY = unitY * state.leftY;
+        float rightX = originX + unitX * state.rightX;
+        float rightY = unitY * state.rightY;
+        boolean closed = !state.leftOpen && !state.rightOpen;
+
         // Use the inter-eye distance to set the size of the eyes.
-        float distance = (float) Math.sqrt(
-                Math.pow(rightPosition.x - leftPosition.x, 2) +
-                Math.pow(rightPosition.y - leftPosition.y, 2));
+        float dx = rightX - leftX;
+        float dy = rightY - leftY;
+        float distance = (float) Math.sqrt(dx * dx + dy * dy);
         float eyeWidth = EYE_ROI_PROPORTION_WIDTH * distance;
         float eyeHeight = EYE_ROI_PROPORTION_HEIGHT * distance;
 
         // Draw left eye.
-        drawEye(canvas, leftPosition, eyeWidth, eyeHeight);
+        drawEye(canvas, leftX, leftY, eyeWidth, eyeHeight, closed);
 
         // Draw right eye.
-        drawEye(canvas, rightPosition, eyeWidth, eyeHeight);
+        drawEye(canvas, rightX, rightY, eyeWidth, eyeHeight, closed);
 
     }
 
     /**
      * Draws the eye.
      */
-    private void drawEye(Canvas canvas, PointF eyePosition, float eyeWidth,
-                          float eyeHeight) {
-        if (mLeftOpen || mRightOpen) {
-
-        } else {
+    private void drawEye(Canvas canvas, float x, float y, float eyeWidth, float eyeHeight,
+                         boolean closed) {
+        if (closed) {
             // Blue circle to show it is closed.
-            canvas.drawCircle(eyePosition.x, eyePosition.y, eyeWidth, mEyeLidPaint);
+            canvas.drawCircle(x, y, eyeWidth, mEyeLidPaint);
         }
 
 
-        canvas.drawRect(eyePosition.x - eyeWidth/2, eyePosition.y - (eyeHeight*3)/5 ,eyePosition.x + eyeWidth/2, eyePosition.y + (eyeHeight*2)/5 , mEyeOutlinePaint);
+        canvas.drawRect(x - eyeWidth/2, y - (eyeHeight*3)/5 ,x + eyeWidth/2, y + (eyeHeight*2)/5 , mEyeOutlinePaint);
     }
-    private void drawPupil(Canvas canvas, PointF pupilPosition){
+    private void drawPupil(Canvas canvas, float x, float y){
 
-        canvas.drawCircle(pupilPosition.x, pupilPosition.y, 9, mEyeIrisPaint );
+        canvas.drawCircle(x, y, PUPIL_RADIUS, mEyeIrisPaint );
     }
 
 }
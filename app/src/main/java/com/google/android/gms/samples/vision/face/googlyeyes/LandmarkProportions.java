@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.face.googlyeyes;
+
+/**
+ * The last seen positions of the face landmarks, as proportions of the face bounding box, so that
+ * a landmark missing from a later detection can be approximated within the new bounding box.<p>
+ *
+ * The proportions are kept in primitive arrays indexed by landmark type, so that recording and
+ * approximating landmarks does not allocate.
+ */
+final class LandmarkProportions {
+    // Landmark types are the small integers from Landmark.BOTTOM_MOUTH (0) to Landmark.RIGHT_MOUTH
+    // (11). Other types are ignored.
+    static final int TYPE_COUNT = 12;
+
+    private final float[] mX = new float[TYPE_COUNT];
+    private final float[] mY = new float[TYPE_COUNT];
+    private final boolean[] mSeen = new boolean[TYPE_COUNT];
+
+    //==============================================================================================
+    // Methods
+    //==============================================================================================
+
+    /**
+     * Records the landmark of the given type at x, y, within the face bounding box at faceX, faceY
+     * of the given size.
+     */
+    void record(int type, float x, float y, float faceX, float faceY, float faceWidth,
+                float faceHeight) {
+        if (type < 0 || type >= TYPE_COUNT) {
+            return;
+        }
+        mX[type] = (x - faceX) / faceWidth;
+        mY[type] = (y - faceY) / faceHeight;
+        mSeen[type] = true;
+    }
+
+    /**
+     * Returns true if a landmark of the given type was recorded.
+     */
+    boolean has(int type) {
+        return type >= 0 && type < TYPE_COUNT && mSeen[type];
+    }
+
+    /**
+     * Approximates the landmark of the given type within the face bounding box at faceX of the given
+     * width.  Only valid if {@link #has} the type.
+     */
+    float getX(int type, float faceX, float faceWidth) {
+        return faceX + mX[type] * faceWidth;
+    }
+
+    /**
+     * Approximates the landmark of the given type within the face bounding box at faceY of the given
+     * height.  Only valid if {@link #has} the type.
+     */
+    float getY(int type, float faceY, float faceHeight) {
+        return faceY + mY[type] * faceHeight;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.face.googlyeyes;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in nanoseconds, with a fixed set of log-linear buckets: every power of two
+ * is split into SUB_BUCKETS linear buckets, so the relative error of a bucket is at most
+ * 1 / SUB_BUCKETS.  Latencies up to about 68 seconds are counted separately, longer ones fall
+ * into the last bucket.<p>
+ *
+ * Recording is lock free and does not allocate, so any thread can record into the same histogram.
+ * A {@link Snapshot} copies the counts at one point in time, for percentile reporting.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 35;
+    static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+
+    /**
+     * Counts of a histogram at one point in time.  Reusable, so that reporting does not allocate
+     * either.
+     */
+    public static final class Snapshot {
+        private final long[] mCounts = new long[BUCKET_COUNT];
+        private long mTotal;
+
+        public long getCount() {
+            return mTotal;
+        }
+
+        /**
+         * Sets this snapshot to the samples recorded between the earlier and the later snapshot of
+         * the same histogram.
+         */
+        public void difference(Snapshot later, Snapshot earlier) {
+            for (int i = 0; i < BUCKET_COUNT; ++i) {
+                mCounts[i] = later.mCounts[i] - earlier.mCounts[i];
+            }
+            mTotal = later.mTotal - earlier.mTotal;
+        }
+
+        /**
+         * Returns the latency in nanoseconds that percentile percent of the samples do not exceed,
+         * rounded up to the upper edge of its bucket, or 0 if there are no samples.
+         */
+        public long getPercentile(double percentile) {
+            if (mTotal == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * mTotal));
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; ++i) {
+                seen += mCounts[i];
+                if (seen >= rank) {
+                    return upperEdge(i);
+                }
+            }
+            return upperEdge(BUCKET_COUNT - 1);
+        }
+    }
+
+    //==============================================================================================
+    // Methods
+    //==============================================================================================
+
+    /**
+     * Counts one latency.  Negative values count as 0.
+     */
+    public void record(long nanos) {
+        mCounts.incrementAndGet(bucketOf(Math.max(0, nanos)));
+    }
+
+    /**
+     * Copies the current counts into snapshot.  Samples recorded concurrently may or may not be
+     * included.
+     */
+    public void snapshot(Snapshot snapshot) {
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            long count = mCounts.get(i);
+            snapshot.mCounts[i] = count;
+            total += count;
+        }
+        snapshot.mTotal = total;
+    }
+
+    /**
+     * Drops all samples.
+     */
+    public void clear() {
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            mCounts.set(i, 0);
+        }
+    }
+
+    //==============================================================================================
+    // Private
+    //==============================================================================================
+
+    private static int bucketOf(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int sub = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperEdge(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
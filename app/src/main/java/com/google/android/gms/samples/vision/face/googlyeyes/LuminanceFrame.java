@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.face.googlyeyes;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Snapshot of the luminance (Y) plane of one camera frame.  The pixels are written once by the
+ * detector thread and are read-only afterwards, so all pupil jobs of the frame can share it.
+ * Instances are owned by a {@link LuminanceFramePool} and must be released by every holder, after
+ * which the buffer is recycled for a later frame.  The pixels live in a direct buffer, which native
+ * code can read in place.  The frame also carries the id and timestamp of the camera frame it was
+ * taken from, so that results computed from it can be matched to that frame.
+ */
+final class LuminanceFrame {
+    private final LuminanceFramePool mPool;
+    private ByteBuffer mBuffer;
+    private int mWidth;
+    private int mHeight;
+    private int mId;
+    private long mTimestampMillis;
+    private long mArrivalNanos;
+
+    // Number of holders of this frame, guarded by the pool.
+    int mRefCount;
+
+    //==============================================================================================
+    // Methods
+    //==============================================================================================
+
+    LuminanceFrame(LuminanceFramePool pool) {
+        mPool = pool;
+        mBuffer = ByteBuffer.allocateDirect(0);
+    }
+
+    /**
+     * Copies the first width * height bytes of the supplied YUV data (the Y plane) into this frame,
+     * growing the buffer only if the preview resolution has increased.  id and timestampMillis are
+     * taken from the metadata of the camera frame, arrivalNanos is the System.nanoTime() at which it
+     * reached the detector.
+     */
+    void fill(byte[] yuv, int width, int height, int id, long timestampMillis, long arrivalNanos) {
+        int size = width * height;
+        if (mBuffer.capacity() < size) {
+            mBuffer = ByteBuffer.allocateDirect(size);
+        }
+        mBuffer.clear();
+        mBuffer.put(yuv, 0, size);
+        mBuffer.clear();
+        mWidth = width;
+        mHeight = height;
+        mId = id;
+        mTimestampMillis = timestampMillis;
+        mArrivalNanos = arrivalNanos;
+    }
+
+    /**
+     * Returns the Y plane.  The buffer may be larger than width * height, and must not be modified.
+     */
+    ByteBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    int getWidth() {
+        return mWidth;
+    }
+
+    int getHeight() {
+        return mHeight;
+    }
+
+    int getId() {
+        return mId;
+    }
+
+    long getTimestampMillis() {
+        return mTimestampMillis;
+    }
+
+    long getArrivalNanos() {
+        return mArrivalNanos;
+    }
+
+    /**
+     * Takes an additional reference to the frame for a new holder.
+     */
+    void retain() {
+        mPool.retain(this);
+    }
+
+    /**
+     * Gives up this holder's reference to the frame.
+     */
+    void release() {
+        mPool.release(this);
+    }
+}
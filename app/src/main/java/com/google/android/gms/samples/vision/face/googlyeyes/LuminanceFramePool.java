@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.face.googlyeyes;
+
+/**
+ * Fixed set of recycled {@link LuminanceFrame} buffers, plus the most recently published frame.<p>
+ *
+ * The detector thread obtains a free frame, fills it and publishes it.  Each pupil job retains the
+ * frame it was submitted for and releases it when done.  A frame goes back to the free list once it
+ * is neither published nor held by a job, so after the first few frames no buffers are allocated.
+ */
+final class LuminanceFramePool {
+    private final LuminanceFrame[] mFrames;
+    private LuminanceFrame mLatest;
+
+    //==============================================================================================
+    // Methods
+    //==============================================================================================
+
+    /**
+     * @param capacity number of buffers; one for the published frame, one for the frame being
+     *                 filled and one for each frame that queued or running pupil jobs may hold.
+     */
+    LuminanceFramePool(int capacity) {
+        mFrames = new LuminanceFrame[capacity];
+        for (int i = 0; i < capacity; ++i) {
+            mFrames[i] = new LuminanceFrame(this);
+        }
+    }
+
+    /**
+     * Returns a free frame holding one reference for the caller, or null if every buffer is still
+     * in use.  In that case the caller should skip this camera frame.
+     */
+    synchronized LuminanceFrame obtain() {
+        for (LuminanceFrame frame : mFrames) {
+            if (frame.mRefCount == 0) {
+                frame.mRefCount = 1;
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Makes the frame the latest one, taking over the caller's reference.  The previously published
+     * frame is released.
+     */
+    synchronized void publish(LuminanceFrame frame) {
+        if (mLatest != null) {
+            --mLatest.mRefCount;
+        }
+        mLatest = frame;
+    }
+
+    synchronized void retain(LuminanceFrame frame) {
+        ++frame.mRefCount;
+    }
+
+    synchronized void release(LuminanceFrame frame) {
+        --frame.mRefCount;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.face.googlyeyes;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+
+/**
+ * View of the stage timing counters that native-lib.cpp keeps for the OpenCV steps of the pupil
+ * locator.  The counters live in native memory and are read in place, so sampling them costs no JNI
+ * call.  Every stage counts its calls, their total and their maximum duration in nanoseconds, over
+ * all eyes and threads since the library was loaded.
+ */
+final class NativeStageCounters {
+    // Stages, must match native-lib.cpp.
+    static final int STAGE_ROTATE = 0;
+    static final int STAGE_EQUALIZE = 1;
+    static final int STAGE_SPECULAR = 2;
+    static final int STAGE_RESIZE = 3;
+    static final int STAGE_BLUR = 4;
+    static final int STAGE_TRACK = 5;
+    static final int STAGE_CENTERMAP = 6;
+    static final int STAGE_REFINE = 7;
+    static final int STAGE_COUNT = 8;
+
+    // Fields of one stage.
+    private static final int COUNTER_CALLS = 0;
+    private static final int COUNTER_TOTAL_NANOS = 1;
+    private static final int COUNTER_MAX_NANOS = 2;
+    private static final int COUNTER_STRIDE = 3;
+
+    private static final String[] STAGE_NAMES = {
+            "rotate", "equalize", "specular", "resize", "blur", "track", "centermap", "refine"
+    };
+
+    private final LongBuffer mCounters;
+
+    //==============================================================================================
+    // Methods
+    //==============================================================================================
+
+    /**
+     * @param counters the direct buffer returned by the native library.
+     */
+    NativeStageCounters(ByteBuffer counters) {
+        mCounters = counters.order(ByteOrder.nativeOrder()).asLongBuffer();
+    }
+
+    static String getStageName(int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+    long getCalls(int stage) {
+        return mCounters.get(stage * COUNTER_STRIDE + COUNTER_CALLS);
+    }
+
+    long getTotalNanos(int stage) {
+        return mCounters.get(stage * COUNTER_STRIDE + COUNTER_TOTAL_NANOS);
+    }
+
+    long getMaxNanos(int stage) {
+        return mCounters.get(stage * COUNTER_STRIDE + COUNTER_MAX_NANOS);
+    }
+
+    /**
+     * Returns the mean duration of the stage in nanoseconds, or 0 if it never ran.
+     */
+    long getMeanNanos(int stage) {
+        long calls = getCalls(stage);
+        return calls == 0 ? 0 : getTotalNanos(stage) / calls;
+    }
+}
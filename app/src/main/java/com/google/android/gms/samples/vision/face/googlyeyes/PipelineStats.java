@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.face.googlyeyes;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms of the stages of the eye tracking pipeline.  Every stage is recorded on the
+ * thread that runs it, without locking or allocating, and can be snapshotted for p50, p95 and p99
+ * reporting at any time.  Event counters of the pipeline are kept alongside, so that rates can be
+ * derived from them.
+ */
+public final class PipelineStats {
+    // Time between the arrivals of two frames in the face detector.
+    public static final int STAGE_FRAME_INTERVAL = 0;
+    // Copy of the luminance plane for the pupil workers.
+    public static final int STAGE_BUFFER_COPY = 1;
+    // Face and landmark detection.
+    public static final int STAGE_FACE_DETECTION = 2;
+    // Pupil location of one eye, as reported by the locator.
+    public static final int STAGE_LEFT_PUPIL = 3;
+    public static final int STAGE_RIGHT_PUPIL = 4;
+    // Drawing of the graphic overlay.
+    public static final int STAGE_OVERLAY_DRAW = 5;
+    // Time the detector thread spends on a frame, detection and trackers included.
+    public static final int STAGE_FRAME_LATENCY = 6;
+    // Time from the arrival of a frame in the detector until its eyes are drawn.
+    public static final int STAGE_CAPTURE_TO_RENDER = 7;
+    // Recording of a frame to the session file, if enabled.
+    public static final int STAGE_RECORD = 8;
+    public static final int STAGE_COUNT = 9;
+
+    // Frames delivered by the camera, including the dropped ones.
+    public static final int COUNTER_CAMERA_FRAMES = 0;
+    // Frames the camera source dropped because the detector thread was busy.
+    public static final int COUNTER_DROPPED_FRAMES = 1;
+    // Frames that ran the face detector, rather than reusing the last detection.
+    public static final int COUNTER_FACE_DETECTIONS = 2;
+    // Pupils located per eye.
+    public static final int COUNTER_LEFT_PUPILS = 3;
+    public static final int COUNTER_RIGHT_PUPILS = 4;
+    // Pupils dropped because they belong to an older frame than the last one shown, or are too old.
+    public static final int COUNTER_STALE_PUPILS = 5;
+    // Frames the pupil workers skipped because every buffer of the frame pool was still held.
+    public static final int COUNTER_POOL_SKIPS = 6;
+    // Pupil jobs the executor dropped unrun, because a newer job replaced them or the queue was full.
+    public static final int COUNTER_DROPPED_JOBS = 7;
+    public static final int COUNTER_COUNT = 8;
+
+    private static final String[] STAGE_NAMES = {
+            "frame", "copy", "detect", "left pupil", "right pupil", "draw", "latency", "to screen", "record"
+    };
+
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[STAGE_COUNT];
+    private final AtomicLongArray mCounters = new AtomicLongArray(COUNTER_COUNT);
+
+    //==============================================================================================
+    // Methods
+    //==============================================================================================
+
+    public PipelineStats() {
+        for (int i = 0; i < STAGE_COUNT; ++i) {
+            mHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    public static String getStageName(int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+    public void record(int stage, long nanos) {
+        mHistograms[stage].record(nanos);
+    }
+
+    public void snapshot(int stage, LatencyHistogram.Snapshot snapshot) {
+        mHistograms[stage].snapshot(snapshot);
+    }
+
+    public void count(int counter, long events) {
+        mCounters.addAndGet(counter, events);
+    }
+
+    public long getCount(int counter) {
+        return mCounters.get(counter);
+    }
+
+    public void clear() {
+        for (LatencyHistogram histogram : mHistograms) {
+            histogram.clear();
+        }
+        for (int i = 0; i < COUNTER_COUNT; ++i) {
+            mCounters.set(i, 0);
+        }
+    }
+}
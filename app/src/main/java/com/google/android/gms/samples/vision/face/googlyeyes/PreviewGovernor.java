@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.face.googlyeyes;
+
+/**
+ * Chooses the camera preview resolution and frame rate from a table of modes, so that the frame
+ * latency stays within a budget.<p>
+ *
+ * Frames are evaluated in windows of a fixed number of frames.  When the mean latency of a window
+ * exceeds the budget, or too many camera frames were dropped, the governor steps down to the next
+ * cheaper mode.  After several consecutive windows well within the budget and without drops, it
+ * steps up again.  The window after a change is ignored, since the camera restarts.<p>
+ *
+ * Every mode remembers how often it failed, i.e. was stepped down from.  Stepping up into a mode
+ * that failed takes twice as many calm windows per failure, up to a limit, so that a mode that
+ * cannot keep up is retried less and less often instead of every few windows.  A mode forgets its
+ * failures once it has held for FORGET_WINDOWS windows.<p>
+ *
+ * The decision logic only depends on the samples it is fed, so it can be driven by a simulated
+ * latency trace.
+ */
+final class PreviewGovernor {
+    // Fraction of dropped camera frames above which the governor steps down.
+    private static final float MAX_DROP_RATIO = 0.1f;
+    // Steps up only while the mean latency is below this fraction of the budget...
+    private static final float UPGRADE_HEADROOM = 0.6f;
+    // ...for this many consecutive windows.
+    private static final int UPGRADE_WINDOWS = 5;
+    // Windows ignored after a mode change.
+    private static final int SETTLE_WINDOWS = 1;
+    // The calm windows needed to step up into a mode double with each of its failures, up to
+    // UPGRADE_WINDOWS << MAX_BACKOFF_SHIFT.
+    private static final int MAX_BACKOFF_SHIFT = 4;
+    // Windows a mode has to hold before its failures are forgotten.
+    private static final int FORGET_WINDOWS = 100;
+
+    /**
+     * A preview size and frame rate to request from the camera.
+     */
+    static final class Mode {
+        final int width;
+        final int height;
+        final float fps;
+
+        Mode(int width, int height, float fps) {
+            this.width = width;
+            this.height = height;
+            this.fps = fps;
+        }
+    }
+
+    private final Mode[] mModes;
+    private final long mBudgetNanos;
+    private final int mWindowFrames;
+    private int mMode;
+
+    // Samples of the current window.
+    private int mFrames;
+    private int mDrops;
+    private long mLatencySum;
+
+    private int mCalmWindows;
+    private int mSettleWindows;
+    // Failures per mode, and the windows the current mode has held since it was entered.
+    private final int[] mFailures;
+    private int mHeldWindows;
+
+    //==============================================================================================
+    // Methods
+    //==============================================================================================
+
+    /**
+     * @param modes        the available modes, from the cheapest to the most expensive.
+     * @param initialMode  index of the mode to start with.
+     * @param budgetNanos  target for the mean frame latency.
+     * @param windowFrames number of frames per decision.
+     */
+    PreviewGovernor(Mode[] modes, int initialMode, long budgetNanos, int windowFrames) {
+        mModes = modes;
+        mMode = initialMode;
+        mBudgetNanos = budgetNanos;
+        mWindowFrames = windowFrames;
+        mFailures = new int[modes.length];
+    }
+
+    synchronized Mode getMode() {
+        return mModes[mMode];
+    }
+
+    synchronized int getModeIndex() {
+        return mMode;
+    }
+
+    /**
+     * Records one processed frame, with its end-to-end latency, from its arrival until its results
+     * were published, and the number of frames or parts of their work dropped since the previous
+     * one, e.g. by the camera source or by the pupil workers falling behind.  Returns true if the
+     * mode changed, in which case the camera should be restarted with {@link #getMode()}.
+     */
+    synchronized boolean onFrame(long latencyNanos, int droppedFrames) {
+        ++mFrames;
+        mDrops += droppedFrames;
+        mLatencySum += latencyNanos;
+        if (mFrames < mWindowFrames) {
+            return false;
+        }
+
+        long meanLatency = mLatencySum / mFrames;
+        float dropRatio = mDrops / (float) (mFrames + mDrops);
+        mFrames = 0;
+        mDrops = 0;
+        mLatencySum = 0;
+
+        if (mSettleWindows > 0) {
+            --mSettleWindows;
+            return false;
+        }
+        if (meanLatency > mBudgetNanos || dropRatio > MAX_DROP_RATIO) {
+            mCalmWindows = 0;
+            if (mMode == 0) {
+                return false;
+            }
+            if (mFailures[mMode] < MAX_BACKOFF_SHIFT) {
+                ++mFailures[mMode];
+            }
+            return setMode(mMode - 1);
+        }
+        if (++mHeldWindows == FORGET_WINDOWS) {
+            mFailures[mMode] = 0;
+        }
+        if (meanLatency < mBudgetNanos * UPGRADE_HEADROOM && dropRatio == 0) {
+            if (mMode < mModes.length - 1
+                    && ++mCalmWindows >= UPGRADE_WINDOWS << mFailures[mMode + 1]) {
+                return setMode(mMode + 1);
+            }
+        } else {
+            mCalmWindows = 0;
+        }
+        return false;
+    }
+
+    //==============================================================================================
+    // Private
+    //==============================================================================================
+
+    private boolean setMode(int mode) {
+        mMode = mode;
+        mCalmWindows = 0;
+        mHeldWindows = 0;
+        mSettleWindows = SETTLE_WINDOWS;
+        return true;
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.face.googlyeyes;
+
+/**
+ * Fixed pool of worker threads that refine pupil positions for any number of eyes and faces.<p>
+ *
+ * Each job is one eye ROI of one face in one frame.  The queue is bounded and keeps at most one job
+ * per eye: submitting a job for an eye that is still queued replaces the older job, so a slow
+ * worker never falls behind on stale frames.  A worker takes every queued job of the same frame and
+ * hands them to the {@link Locator} as one batch, so a frame crosses into native code once per
+ * batch rather than once per eye.  Idle workers are parked until a job is submitted, and only one
+ * of them is woken for all queued jobs of a frame.<p>
+ *
+ * Jobs are recycled, so submitting and completing jobs does not allocate.
+ */
+final class PupilExecutor {
+    static final int LEFT_EYE = 0;
+    static final int RIGHT_EYE = 1;
+
+    // Layout of the batched locator arrays: one eye record per eye ROI and one result record per
+    // pupil.  Must match native-lib.cpp.
+    static final int EYE_STRIDE = 6;
+    static final int PUPIL_STRIDE = 5;
+
+    // Fields of an eye record.  EYE_HAS_PRIOR is 1 if the previous pupil EYE_PRIOR_X, EYE_PRIOR_Y
+    // is known and 0 otherwise.
+    static final int EYE_X = 0;
+    static final int EYE_Y = 1;
+    static final int EYE_DISTANCE = 2;
+    static final int EYE_HAS_PRIOR = 3;
+    static final int EYE_PRIOR_X = 4;
+    static final int EYE_PRIOR_Y = 5;
+
+    // Fields of a pupil result record.
+    static final int PUPIL_X = 0;
+    static final int PUPIL_Y = 1;
+    static final int PUPIL_CONFIDENCE = 2;
+    static final int PUPIL_STATUS = 3;
+    static final int PUPIL_MICROS = 4;
+
+    // Pupil status codes.
+    static final int STATUS_FOUND = 0;
+    static final int STATUS_FAILED = 1;
+    static final int STATUS_OUT_OF_BOUNDS = 2;
+
+    /**
+     * Locates the pupils of count eye ROIs of one frame, see EYE_STRIDE and PUPIL_STRIDE.  Each
+     * result holds the pupil position, the peak-to-second-peak confidence of the center in [0, 1],
+     * one of the status codes and the processing time in microseconds.  The position is (0,0)
+     * unless the status is STATUS_FOUND.
+     */
+    interface Locator {
+        void locatePupils(LuminanceFrame frame, float[] eyes, int count, float[] pupils);
+    }
+
+    /**
+     * Receives the result of a job on the worker thread that ran it.  The job is recycled after
+     * this returns, so it must not be kept.
+     */
+    interface Listener {
+        void onPupilLocated(Job job);
+    }
+
+    /**
+     * One eye ROI to refine.  The executor holds a reference to the frame while the job is queued or
+     * running.
+     */
+    static final class Job {
+        LuminanceFrame frame;
+        int faceId;
+        int side;
+        float eyeX;
+        float eyeY;
+        float distance;
+        // Previous pupil position of the eye, only valid if hasPrior.
+        boolean hasPrior;
+        float priorX;
+        float priorY;
+
+        // Results, filled in by the worker before the listener is called.
+        float pupilX;
+        float pupilY;
+        float confidence;
+        int status;
+        float locateMicros;
+    }
+
+    private final Locator mLocator;
+    private final Listener mListener;
+    private final Worker[] mWorkers;
+
+    // Queued jobs in submission order, and recycled jobs.  Guarded by this.
+    private final Job[] mQueue;
+    private int mQueueSize;
+    private final Job[] mFreeJobs;
+    private int mFreeSize;
+    private boolean mRunning;
+    // Jobs dropped unrun since the last takeDroppedJobs.  Guarded by this.
+    private int mDroppedJobs;
+
+    //==============================================================================================
+    // Methods
+    //==============================================================================================
+
+    /**
+     * @param threadCount   number of worker threads.
+     * @param queueCapacity maximum number of queued jobs.  When the queue is full the oldest job is
+     *                      dropped.
+     * @param maxBatch      maximum number of jobs a worker hands to the locator at once.
+     */
+    PupilExecutor(int threadCount, int queueCapacity, int maxBatch, Locator locator,
+                  Listener listener) {
+        mLocator = locator;
+        mListener = listener;
+        mQueue = new Job[queueCapacity];
+        // Every job is either queued, held by a worker or free.
+        mFreeJobs = new Job[queueCapacity + threadCount * maxBatch];
+        for (int i = 0; i < mFreeJobs.length; ++i) {
+            mFreeJobs[i] = new Job();
+        }
+        mFreeSize = mFreeJobs.length;
+        mWorkers = new Worker[threadCount];
+        for (int i = 0; i < threadCount; ++i) {
+            mWorkers[i] = new Worker(maxBatch);
+        }
+    }
+
+    synchronized void start() {
+        mRunning = true;
+        for (Worker worker : mWorkers) {
+            worker.start();
+        }
+    }
+
+    /**
+     * Stops the workers and drops the queued jobs.  Jobs that are running complete normally.
+     */
+    void shutdown() {
+        synchronized (this) {
+            mRunning = false;
+            while (mQueueSize > 0) {
+                recycle(removeAt(0));
+            }
+            notifyAll();
+        }
+        for (Worker worker : mWorkers) {
+            worker.interrupt();
+        }
+    }
+
+    /**
+     * Queues the eye ROI of the given face and side in the frame, replacing a queued job for the
+     * same eye.  Takes its own reference to the frame.  If hasPrior, the locator searches around
+     * the previous pupil (priorX, priorY) first.  Jobs submitted while holding the lock of the
+     * executor are queued together, so that they end up in the same batch.
+     */
+    synchronized void submit(LuminanceFrame frame, int faceId, int side, float eyeX, float eyeY,
+                             float distance, boolean hasPrior, float priorX, float priorY) {
+        if (!mRunning) {
+            return;
+        }
+        Job job = null;
+        // A queued job of the same frame has already woken a worker, which takes this job with it.
+        boolean frameQueued = false;
+        for (int i = 0; i < mQueueSize; ++i) {
+            Job queued = mQueue[i];
+            if (queued.faceId == faceId && queued.side == side) {
+                // Latest value wins: reuse the queued job and keep its place in the queue.
+                job = queued;
+                ++mDroppedJobs;
+            } else if (queued.frame == frame) {
+                frameQueued = true;
+            }
+        }
+        if (job != null) {
+            job.frame.release();
+        }
+        if (job == null) {
+            if (mQueueSize == mQueue.length) {
+                recycle(removeAt(0));
+                ++mDroppedJobs;
+            }
+            job = mFreeJobs[--mFreeSize];
+            mQueue[mQueueSize++] = job;
+        }
+        frame.retain();
+        job.frame = frame;
+        job.faceId = faceId;
+        job.side = side;
+        job.eyeX = eyeX;
+        job.eyeY = eyeY;
+        job.distance = distance;
+        job.hasPrior = hasPrior;
+        job.priorX = priorX;
+        job.priorY = priorY;
+        if (!frameQueued) {
+            notify();
+        }
+    }
+
+    /**
+     * Returns the number of jobs that were dropped without running since the previous call, because
+     * a newer job for the same eye replaced them or the queue was full, and resets it.  The workers
+     * falling behind the camera shows here first.
+     */
+    synchronized int takeDroppedJobs() {
+        int dropped = mDroppedJobs;
+        mDroppedJobs = 0;
+        return dropped;
+    }
+
+    /**
+     * Waits for a job and moves it, and up to batch.length - 1 other queued jobs of the same frame,
+     * into batch.  Returns the number of jobs taken, or 0 once the executor has been shut down.
+     */
+    private synchronized int take(Job[] batch) throws InterruptedException {
+        while (mRunning && mQueueSize == 0) {
+            wait();
+        }
+        if (!mRunning) {
+            return 0;
+        }
+        Job first = removeAt(0);
+        batch[0] = first;
+        int count = 1;
+        for (int i = 0; i < mQueueSize && count < batch.length; ) {
+            if (mQueue[i].frame == first.frame) {
+                batch[count++] = removeAt(i);
+            } else {
+                ++i;
+            }
+        }
+        if (mQueueSize > 0) {
+            // pass the remaining jobs on to another worker
+            notify();
+        }
+        return count;
+    }
+
+    private synchronized void recycleAll(Job[] batch, int count) {
+        for (int i = 0; i < count; ++i) {
+            recycle(batch[i]);
+            batch[i] = null;
+        }
+    }
+
+    private Job removeAt(int index) {
+        Job job = mQueue[index];
+        System.arraycopy(mQueue, index + 1, mQueue, index, mQueueSize - index - 1);
+        mQueue[--mQueueSize] = null;
+        return job;
+    }
+
+    private void recycle(Job job) {
+        job.frame.release();
+        job.frame = null;
+        mFreeJobs[mFreeSize++] = job;
+    }
+
+    private final class Worker extends Thread {
+        private final Job[] mBatch;
+        private final float[] mEyes;
+        private final float[] mPupils;
+
+        Worker(int maxBatch) {
+            super("PupilWorker");
+            mBatch = new Job[maxBatch];
+            mEyes = new float[maxBatch * EYE_STRIDE];
+            mPupils = new float[maxBatch * PUPIL_STRIDE];
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                int count;
+                try {
+                    count = take(mBatch);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (count == 0) {
+                    return;
+                }
+                try {
+                    for (int i = 0; i < count; ++i) {
+                        Job job = mBatch[i];
+                        int eye = i * EYE_STRIDE;
+                        mEyes[eye + EYE_X] = job.eyeX;
+                        mEyes[eye + EYE_Y] = job.eyeY;
+                        mEyes[eye + EYE_DISTANCE] = job.distance;
+                        mEyes[eye + EYE_HAS_PRIOR] = job.hasPrior ? 1.0f : 0.0f;
+                        mEyes[eye + EYE_PRIOR_X] = job.priorX;
+                        mEyes[eye + EYE_PRIOR_Y] = job.priorY;
+                    }
+                    mLocator.locatePupils(mBatch[0].frame, mEyes, count, mPupils);
+                    for (int i = 0; i < count; ++i) {
+                        Job job = mBatch[i];
+                        int pupil = i * PUPIL_STRIDE;
+                        job.pupilX = mPupils[pupil + PUPIL_X];
+                        job.pupilY = mPupils[pupil + PUPIL_Y];
+                        job.confidence = mPupils[pupil + PUPIL_CONFIDENCE];
+                        job.status = (int) mPupils[pupil + PUPIL_STATUS];
+                        job.locateMicros = mPupils[pupil + PUPIL_MICROS];
+                        mListener.onPupilLocated(job);
+                    }
+                } finally {
+                    recycleAll(mBatch, count);
+                }
+            }
+        }
+    }
+}
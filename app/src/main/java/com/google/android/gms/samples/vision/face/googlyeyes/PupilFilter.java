@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.face.googlyeyes;
+
+/**
+ * Constant velocity Kalman filter for the trajectory of one pupil.<p>
+ *
+ * Both axes are filtered independently, each with position and velocity as state.  Measurements
+ * are weighted by the confidence the locator reports.  Between measurements the position is
+ * extrapolated with the estimated velocity, for at most MAX_PREDICTION_NANOS, so that the pupil can
+ * be drawn on frames that were not refined.<p>
+ *
+ * The state lives in primitive arrays, so filtering does not allocate.  Not thread safe.
+ */
+final class PupilFilter {
+    // Spectral density of the random acceleration, in px^2/s^3.
+    private static final float PROCESS_NOISE = 2000.0f;
+    // Variance of a measurement with confidence 1, in px^2.
+    private static final float MEASUREMENT_NOISE = 4.0f;
+    // Lower bound for the confidence, so that weak measurements still count a little.
+    private static final float MIN_CONFIDENCE = 0.1f;
+    // Variance of the velocity when tracking starts, in px^2/s^2.
+    private static final float INITIAL_VELOCITY_VARIANCE = 10000.0f;
+    private static final long MAX_PREDICTION_NANOS = 200000000L;
+
+    // Per axis (x, y): position, velocity and the covariance entries p00, p01, p11.
+    private final float[] mPosition = new float[2];
+    private final float[] mVelocity = new float[2];
+    private final float[] mCovariance = new float[6];
+    private long mTimeNanos;
+    private boolean mInitialized;
+
+    //==============================================================================================
+    // Methods
+    //==============================================================================================
+
+    boolean isInitialized() {
+        return mInitialized;
+    }
+
+    /**
+     * Forgets the trajectory.  The next measurement starts a new one.
+     */
+    void reset() {
+        mInitialized = false;
+    }
+
+    /**
+     * Adds a pupil position measured at the given time, see System.nanoTime().
+     */
+    void correct(long nanos, float x, float y, float confidence) {
+        float r = MEASUREMENT_NOISE / Math.max(confidence, MIN_CONFIDENCE);
+        if (!mInitialized) {
+            for (int axis = 0; axis < 2; ++axis) {
+                mPosition[axis] = axis == 0 ? x : y;
+                mVelocity[axis] = 0;
+                mCovariance[3 * axis] = r;
+                mCovariance[3 * axis + 1] = 0;
+                mCovariance[3 * axis + 2] = INITIAL_VELOCITY_VARIANCE;
+            }
+            mTimeNanos = nanos;
+            mInitialized = true;
+            return;
+        }
+        // Results of different workers may arrive slightly out of order.
+        float dt = Math.max(0, nanos - mTimeNanos) / 1e9f;
+        mTimeNanos = Math.max(mTimeNanos, nanos);
+        correctAxis(0, x, r, dt);
+        correctAxis(1, y, r, dt);
+    }
+
+    /**
+     * Returns the x coordinate extrapolated to the given time.
+     */
+    float predictX(long nanos) {
+        return mPosition[0] + mVelocity[0] * predictionSeconds(nanos);
+    }
+
+    /**
+     * Returns the y coordinate extrapolated to the given time.
+     */
+    float predictY(long nanos) {
+        return mPosition[1] + mVelocity[1] * predictionSeconds(nanos);
+    }
+
+    //==============================================================================================
+    // Private
+    //==============================================================================================
+
+    private void correctAxis(int axis, float z, float r, float dt) {
+        int c = 3 * axis;
+        float p00 = mCovariance[c];
+        float p01 = mCovariance[c + 1];
+        float p11 = mCovariance[c + 2];
+
+        // Predict
+        float position = mPosition[axis] + mVelocity[axis] * dt;
+        float dt2 = dt * dt;
+        p00 += 2 * dt * p01 + dt2 * p11 + PROCESS_NOISE * dt2 * dt / 3;
+        p01 += dt * p11 + PROCESS_NOISE * dt2 / 2;
+        p11 += PROCESS_NOISE * dt;
+
+        // Update
+        float innovation = z - position;
+        float s = p00 + r;
+        float k0 = p00 / s;
+        float k1 = p01 / s;
+        mPosition[axis] = position + k0 * innovation;
+        mVelocity[axis] += k1 * innovation;
+        mCovariance[c] = (1 - k0) * p00;
+        mCovariance[c + 1] = (1 - k0) * p01;
+        mCovariance[c + 2] = p11 - k1 * p01;
+    }
+
+    private float predictionSeconds(long nanos) {
+        return Math.min(Math.max(0, nanos - mTimeNanos), MAX_PREDICTION_NANOS) / 1e9f;
+    }
+}
@@ -20,15 +20,22 @@ import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.AttributeSet;
+import android.view.Choreographer;
 import android.view.View;
 
+import com.google.android.gms.samples.vision.face.googlyeyes.LatencyHistogram;
+import com.google.android.gms.samples.vision.face.googlyeyes.PipelineStats;
 import com.google.android.gms.samples.vision.face.googlyeyes.R;
 import com.google.android.gms.vision.CameraSource;
 import com.google.android.gms.vision.text.internal.client.LineBoxParcel;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A view which renders a series of custom graphics to be overlayed on top of an associated preview
@@ -47,6 +54,13 @@ import java.util.Set;
  * <li>{@link Graphic#translateX(float)} and {@link Graphic#translateY(float)} adjust the coordinate
  * from the preview's coordinate system to the view coordinate system.</li>
  * </ol>
+ *
+ * The graphics are published as an immutable array, which is replaced on every change, so drawing
+ * never blocks the threads that add or remove graphics, nor the other way round.<p>
+ *
+ * Redraws requested by any thread are coalesced: the overlay is invalidated at most once per
+ * display frame, on the next vsync after the first request.  Before Jelly Bean, which lacks
+ * Choreographer, the redraw is posted to the next multiple of FALLBACK_FRAME_MILLIS instead.
  */
 public class GraphicOverlay extends View {
     private final Object mLock = new Object();
@@ -55,11 +69,55 @@ public class GraphicOverlay extends View {
     private int mPreviewHeight;
     private float mHeightScaleFactor = 1.0f;
     private int mFacing = CameraSource.CAMERA_FACING_BACK;
-    private Set<Graphic> mGraphics = new HashSet<>();
+    // Graphics, drawn from an immutable snapshot.
+    private final SnapshotArray<Graphic> mGraphics = new SnapshotArray<>(new Graphic[0]);
     private Bitmap cachedBitmap = null;
     private Canvas cachedCanvas = null;
     private Paint LinePaint = new Paint();
     private Bitmap bitmap = null;
+    private PipelineStats mStats;
+
+    // Pending redraw, and the number of redraws requested and executed.
+    private final AtomicBoolean mRedrawPending = new AtomicBoolean();
+    private final AtomicLong mRedrawsRequested = new AtomicLong();
+    private final AtomicLong mRedrawsExecuted = new AtomicLong();
+    // Posts the redraws on vsync, or null before Jelly Bean.
+    private final VsyncRedraw mVsyncRedraw;
+    // Posts the redraws to the UI thread before Jelly Bean, or null.  Unlike View.postDelayed from
+    // another thread, its messages are not lost while the view is detached.
+    private final Handler mFallbackHandler;
+    // Frame interval the redraws are aligned to without Choreographer, that of a 60 Hz display.
+    private static final long FALLBACK_FRAME_MILLIS = 16;
+    private final Runnable mRedrawRunnable = new Runnable() {
+        @Override
+        public void run() {
+            redraw();
+        }
+    };
+
+    // Performance HUD, drawn into cachedBitmap.  Its values are sampled every HUD_UPDATE_NANOS, and
+    // the bitmap is only redrawn when one of them changed.
+    private static final long HUD_UPDATE_NANOS = 500000000L;
+    private static final float HUD_TEXT_SIZE = 32.0f;
+    private static final int HUD_CAMERA_FPS = 0;
+    private static final int HUD_DETECTOR_FPS = 1;
+    private static final int HUD_LEFT_PUPIL_RATE = 2;
+    private static final int HUD_RIGHT_PUPIL_RATE = 3;
+    private static final int HUD_DROPPED_FRAMES = 4;
+    // Tenths of a millisecond.
+    private static final int HUD_P95_LATENCY = 5;
+    private static final int HUD_REDRAWS_REQUESTED = 6;
+    private static final int HUD_REDRAWS_EXECUTED = 7;
+    private static final int HUD_VALUE_COUNT = 8;
+    private final int[] mHudValues = new int[HUD_VALUE_COUNT];
+    private final long[] mHudCounts = new long[PipelineStats.COUNTER_COUNT];
+    private long mHudRedrawsRequested;
+    private long mHudRedrawsExecuted;
+    private long mHudTimeNanos;
+    private boolean mHudDirty;
+    private LatencyHistogram.Snapshot mHudLatency = new LatencyHistogram.Snapshot();
+    private LatencyHistogram.Snapshot mHudLastLatency = new LatencyHistogram.Snapshot();
+    private final LatencyHistogram.Snapshot mHudWindowLatency = new LatencyHistogram.Snapshot();
 
 
 
@@ -124,48 +182,78 @@ public class GraphicOverlay extends View {
             return scaleY(y);
         }
 
-        public void postInvalidate() {
-            mOverlay.postInvalidate();
+        /**
+         * Requests a redraw of the overlay, see {@link GraphicOverlay#requestRedraw()}.
+         */
+        public void requestRedraw() {
+            mOverlay.requestRedraw();
+        }
+    }
+
+    /**
+     * Runs the redraws of an overlay on the next vsync.  Only loaded from Jelly Bean on, since
+     * Choreographer does not exist before.
+     */
+    private static final class VsyncRedraw implements Choreographer.FrameCallback {
+        private final GraphicOverlay mOverlay;
+        private final Choreographer mChoreographer = Choreographer.getInstance();
+
+        VsyncRedraw(GraphicOverlay overlay) {
+            mOverlay = overlay;
+        }
+
+        void post() {
+            mChoreographer.postFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mOverlay.redraw();
         }
     }
 
     public GraphicOverlay(Context context, AttributeSet attrs) {
         super(context, attrs);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            mVsyncRedraw = new VsyncRedraw(this);
+            mFallbackHandler = null;
+        } else {
+            mVsyncRedraw = null;
+            mFallbackHandler = new Handler(Looper.getMainLooper());
+        }
         this.setDrawingCacheEnabled(true);
         LinePaint = new Paint();
         LinePaint.setColor(Color.WHITE);
         LinePaint.setStyle(Paint.Style.FILL);
-
+        LinePaint.setTextSize(HUD_TEXT_SIZE);
+        LinePaint.setAntiAlias(true);
     }
 
     /**
      * Removes all graphics from the overlay.
      */
     public void clear() {
-        synchronized (mLock) {
-            mGraphics.clear();
-        }
-        postInvalidate();
+        mGraphics.clear();
+        requestRedraw();
     }
 
     /**
-     * Adds a graphic to the overlay.
+     * Adds a graphic to the overlay.  Does nothing if the graphic is already present, which is
+     * checked without locking.
      */
     public void add(Graphic graphic) {
-        synchronized (mLock) {
-            mGraphics.add(graphic);
+        if (mGraphics.add(graphic)) {
+            requestRedraw();
         }
-        postInvalidate();
     }
 
     /**
      * Removes a graphic from the overlay.
      */
     public void remove(Graphic graphic) {
-        synchronized (mLock) {
-            mGraphics.remove(graphic);
+        if (mGraphics.remove(graphic)) {
+            requestRedraw();
         }
-        postInvalidate();
     }
 
     /**
@@ -178,10 +266,58 @@ public class GraphicOverlay extends View {
             mPreviewHeight = previewHeight;
             mFacing = facing;
         }
-        postInvalidate();
+        requestRedraw();
+    }
+
+    /**
+     * Requests a redraw of the overlay.  Can be called from any thread.  All requests before the
+     * next display frame result in a single invalidate on that frame.
+     */
+    public void requestRedraw() {
+        mRedrawsRequested.incrementAndGet();
+        if (mRedrawPending.compareAndSet(false, true)) {
+            if (mVsyncRedraw != null) {
+                mVsyncRedraw.post();
+            } else {
+                mFallbackHandler.postDelayed(mRedrawRunnable,
+                        FALLBACK_FRAME_MILLIS - SystemClock.uptimeMillis() % FALLBACK_FRAME_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * Clears a redraw that may have been pending when the view was detached, so that it cannot block
+     * all further redraws, and redraws the graphics updated in the meantime.
+     */
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        mRedrawPending.set(false);
+        requestRedraw();
+    }
+
+    /**
+     * Returns the number of redraws requested so far.
+     */
+    public long getRedrawsRequested() {
+        return mRedrawsRequested.get();
     }
 
+    /**
+     * Returns the number of invalidates the requests were coalesced into.
+     */
+    public long getRedrawsExecuted() {
+        return mRedrawsExecuted.get();
+    }
+
+
 
+    /**
+     * Sets the statistics that the drawing time of the overlay is recorded into.
+     */
+    public void setPipelineStats(PipelineStats stats) {
+        mStats = stats;
+    }
 
     /**
      * Draws the overlay with its associated graphic objects.
@@ -189,25 +325,129 @@ public class GraphicOverlay extends View {
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
-
+        long start = System.nanoTime();
 
         synchronized (mLock) {
             if ((mPreviewWidth != 0) && (mPreviewHeight != 0)) {
                 mWidthScaleFactor = (float) canvas.getWidth() / (float) mPreviewWidth;
                 mHeightScaleFactor = (float) canvas.getHeight() / (float) mPreviewHeight;
             }
+        }
 
-            for (Graphic graphic : mGraphics) {
-                graphic.draw(canvas);
-            }
-            if(cachedBitmap == null) {
-                cachedBitmap = Bitmap.createBitmap(getWidth(), 200, Bitmap.Config.ARGB_8888);
-                cachedCanvas = new Canvas(cachedBitmap);
+        for (Graphic graphic : mGraphics.get()) {
+            graphic.draw(canvas);
+        }
+        if(cachedBitmap == null) {
+            cachedBitmap = Bitmap.createBitmap(getWidth(), 200, Bitmap.Config.ARGB_8888);
+            cachedCanvas = new Canvas(cachedBitmap);
+            mHudDirty = true;
+        }
+        sampleHud();
+        if (mHudDirty) {
+            drawHud();
+            mHudDirty = false;
+        }
 
-            }
+        canvas.drawBitmap(cachedBitmap,0,120,null);
+        if (mStats != null) {
+            mStats.record(PipelineStats.STAGE_OVERLAY_DRAW, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Runs a pending redraw on the UI thread.
+     */
+    private void redraw() {
+        mRedrawPending.set(false);
+        mRedrawsExecuted.incrementAndGet();
+        invalidate();
+    }
+
+    /**
+     * Derives the HUD values from the pipeline statistics once per HUD_UPDATE_NANOS: the rates
+     * over the elapsed interval, the total of dropped frames and the 95th percentile of the frame
+     * latency within the interval.  Marks the HUD dirty if a value changed.
+     */
+    private void sampleHud() {
+        if (mStats == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (mHudTimeNanos != 0 && now - mHudTimeNanos < HUD_UPDATE_NANOS) {
+            return;
+        }
+        float seconds = (now - mHudTimeNanos) / 1e9f;
+        boolean first = mHudTimeNanos == 0;
+        mHudTimeNanos = now;
+
+        long cameraFrames = countSince(PipelineStats.COUNTER_CAMERA_FRAMES);
+        long detections = countSince(PipelineStats.COUNTER_FACE_DETECTIONS);
+        long leftPupils = countSince(PipelineStats.COUNTER_LEFT_PUPILS);
+        long rightPupils = countSince(PipelineStats.COUNTER_RIGHT_PUPILS);
+        countSince(PipelineStats.COUNTER_DROPPED_FRAMES);
+        long redrawsRequested = mRedrawsRequested.get() - mHudRedrawsRequested;
+        long redrawsExecuted = mRedrawsExecuted.get() - mHudRedrawsExecuted;
+        mHudRedrawsRequested += redrawsRequested;
+        mHudRedrawsExecuted += redrawsExecuted;
+        mStats.snapshot(PipelineStats.STAGE_FRAME_LATENCY, mHudLatency);
+        mHudWindowLatency.difference(mHudLatency, mHudLastLatency);
+        LatencyHistogram.Snapshot swap = mHudLastLatency;
+        mHudLastLatency = mHudLatency;
+        mHudLatency = swap;
+        if (first) {
+            return;
+        }
+
+        setHudValue(HUD_CAMERA_FPS, Math.round(cameraFrames / seconds));
+        setHudValue(HUD_DETECTOR_FPS, Math.round(detections / seconds));
+        setHudValue(HUD_LEFT_PUPIL_RATE, Math.round(leftPupils / seconds));
+        setHudValue(HUD_RIGHT_PUPIL_RATE, Math.round(rightPupils / seconds));
+        setHudValue(HUD_DROPPED_FRAMES, (int) mHudCounts[PipelineStats.COUNTER_DROPPED_FRAMES]);
+        setHudValue(HUD_REDRAWS_REQUESTED, Math.round(redrawsRequested / seconds));
+        setHudValue(HUD_REDRAWS_EXECUTED, Math.round(redrawsExecuted / seconds));
+        if (mHudWindowLatency.getCount() > 0) {
+            setHudValue(HUD_P95_LATENCY,
+                    (int) (mHudWindowLatency.getPercentile(95) / 100000));
+        }
+    }
+
+    /**
+     * Returns the events of the counter since the previous sample.
+     */
+    private long countSince(int counter) {
+        long count = mStats.getCount(counter);
+        long events = count - mHudCounts[counter];
+        mHudCounts[counter] = count;
+        return events;
+    }
 
-            canvas.drawBitmap(cachedBitmap,0,120,null);
+    private void setHudValue(int index, int value) {
+        if (mHudValues[index] != value) {
+            mHudValues[index] = value;
+            mHudDirty = true;
+        }
+    }
+
+    /**
+     * Redraws the HUD values into the cached bitmap.
+     */
+    private void drawHud() {
+        cachedBitmap.eraseColor(Color.TRANSPARENT);
+        if (mStats == null) {
+            return;
         }
+        float x = HUD_TEXT_SIZE / 2;
+        float line = HUD_TEXT_SIZE * 1.2f;
+        cachedCanvas.drawText("camera " + mHudValues[HUD_CAMERA_FPS] + " fps, detector "
+                + mHudValues[HUD_DETECTOR_FPS] + " fps", x, line, LinePaint);
+        cachedCanvas.drawText("pupils " + mHudValues[HUD_LEFT_PUPIL_RATE] + "/s left, "
+                + mHudValues[HUD_RIGHT_PUPIL_RATE] + "/s right", x, 2 * line, LinePaint);
+        cachedCanvas.drawText("dropped " + mHudValues[HUD_DROPPED_FRAMES] + " frames", x,
+                3 * line, LinePaint);
+        cachedCanvas.drawText("p95 latency " + mHudValues[HUD_P95_LATENCY] / 10 + "."
+                + mHudValues[HUD_P95_LATENCY] % 10 + " ms", x, 4 * line, LinePaint);
+        cachedCanvas.drawText("redraws " + mHudValues[HUD_REDRAWS_REQUESTED] + "/s requested, "
+                + mHudValues[HUD_REDRAWS_EXECUTED] + "/s executed", x, 5 * line, LinePaint);
     }
 
 }
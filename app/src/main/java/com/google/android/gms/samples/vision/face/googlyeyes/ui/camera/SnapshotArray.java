@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.face.googlyeyes.ui.camera;
+
+import java.util.Arrays;
+
+/**
+ * A set of items published as an immutable array, in insertion order.  Every change replaces the
+ * array under a lock, so readers iterate the current snapshot without locking, and are never
+ * blocked by the writers nor block them.  Adding an item that is already present is checked
+ * without locking and changes nothing.
+ */
+final class SnapshotArray<T> {
+    private final Object mLock = new Object();
+    private final T[] mEmpty;
+    // Current snapshot, replaced but never modified. Written under mLock.
+    private volatile T[] mItems;
+
+    //==============================================================================================
+    // Methods
+    //==============================================================================================
+
+    /**
+     * @param empty an empty array of the item type, which is also the initial snapshot.
+     */
+    SnapshotArray(T[] empty) {
+        mEmpty = empty;
+        mItems = empty;
+    }
+
+    /**
+     * Returns the current snapshot.  It must not be modified.
+     */
+    T[] get() {
+        return mItems;
+    }
+
+    /**
+     * Adds the item at the end.  Returns false, without locking, if it is already present.
+     */
+    boolean add(T item) {
+        if (indexOf(mItems, item) >= 0) {
+            return false;
+        }
+        synchronized (mLock) {
+            T[] items = mItems;
+            if (indexOf(items, item) >= 0) {
+                return false;
+            }
+            items = Arrays.copyOf(items, items.length + 1);
+            items[items.length - 1] = item;
+            mItems = items;
+        }
+        return true;
+    }
+
+    /**
+     * Removes the item.  Returns false if it is not present.
+     */
+    boolean remove(T item) {
+        synchronized (mLock) {
+            T[] items = mItems;
+            int index = indexOf(items, item);
+            if (index < 0) {
+                return false;
+            }
+            T[] remaining = Arrays.copyOf(mEmpty, items.length - 1);
+            System.arraycopy(items, 0, remaining, 0, index);
+            System.arraycopy(items, index + 1, remaining, index, remaining.length - index);
+            mItems = remaining;
+        }
+        return true;
+    }
+
+    /**
+     * Removes all items.
+     */
+    void clear() {
+        synchronized (mLock) {
+            mItems = mEmpty;
+        }
+    }
+
+    //==============================================================================================
+    // Private
+    //==============================================================================================
+
+    private static int indexOf(Object[] items, Object item) {
+        for (int i = 0; i < items.length; ++i) {
+            if (items[i] == item) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,348 @@
+//
+// Host tests of the native pupil locator. Built with -DNATIVE_LIB_TESTS=ON against a desktop
+// OpenCV, see CMakeLists.txt. The locator source is included so that its internal functions can be
+// called directly.
+//
+#include "../../main/cpp/native-lib.cpp"
+
+static int failures = 0;
+
+#define CHECK(condition, message) \
+    do { \
+        if (!(condition)) { \
+            cerr << __FILE__ << ":" << __LINE__ << ": " << message << endl; \
+            failures++; \
+        } \
+    } while (0)
+
+// A camera frame of noise, shading and dark discs with bright glints, which is what the locator sees
+// in the rotated frame. Deterministic for a given seed.
+Mat synthetic_frame(int width, int height, uint64 seed) {
+    RNG rng(seed);
+    Mat frame(height, width, CV_8UC1);
+    for (int y = 0; y < height; ++y)
+        for (int x = 0; x < width; ++x)
+            frame.at<uchar>(y, x) = saturate_cast<uchar>(90 + x * 60 / width + y * 40 / height
+                                                         + rng.gaussian(12));
+    for (int i = 0; i < 12; ++i) {
+        Point center(rng.uniform(0, width), rng.uniform(0, height));
+        int radius = rng.uniform(3, 12);
+        circle(frame, center, radius, Scalar(rng.uniform(10, 50)), -1);
+        circle(frame, center + Point(radius / 3, -radius / 3), std::max(1, radius / 4),
+               Scalar(250), -1);
+    }
+    return frame;
+}
+
+// Filters eye with the steps of locate_pupil and returns the center. Leaves the filtered ROI
+// before find_eye_center in prepared.
+Point2f process_eye(Mat eye, Point2f prior, float& confidence, Mat& prepared) {
+    equalizeHist(eye, eye);
+    erase_specular(eye, true);
+    prepared = eye.clone();
+    confidence = 0;
+    LocatorScratch scratch;
+    return find_eye_center(eye, prior, confidence, scratch);
+}
+
+bool identical(const Mat& a, const Mat& b) {
+    return a.size() == b.size() && countNonZero(a != b) == 0;
+}
+
+// The padded rotated window must give exactly the pixels and centers of filtering a view of the
+// whole rotated frame, as the locator did before it only rotated the ROI. ROIs touching each border
+// of the frame are included.
+void test_rotated_window_matches_full_frame() {
+    const int width = 320;
+    const int height = 240;
+    int compared = 0;
+    for (uint64 seed = 1; seed <= 20; ++seed) {
+        Mat frame = synthetic_frame(width, height, seed);
+        RNG rng(seed * 7919);
+        for (int i = 0; i < 40; ++i) {
+            // ROIs in the rotated frame, which is height wide and width high
+            int roiWidth = rng.uniform(8, 60);
+            int roiHeight = rng.uniform(6, 45);
+            int x = rng.uniform(0, height - roiWidth + 1);
+            int y = rng.uniform(0, width - roiHeight + 1);
+            switch (i % 5) {
+                case 1: x = 0; break;
+                case 2: y = 0; break;
+                case 3: x = height - roiWidth; break;
+                case 4: y = width - roiHeight; break;
+            }
+            Rect eyeROI(x, y, roiWidth, roiHeight);
+
+            for (int tracked = 0; tracked < 2; ++tracked) {
+                Point2f prior(-1, -1);
+                if (tracked)
+                    prior = Point2f(roiWidth / 2.0f, roiHeight / 2.0f);
+
+                Mat rotated;
+                rotate(frame, rotated, ROTATE_90_COUNTERCLOCKWISE);
+                Mat full_eye = rotated(eyeROI);
+                float full_confidence;
+                Mat full_prepared;
+                Point2f full_center = process_eye(full_eye, prior, full_confidence, full_prepared);
+
+                Mat window;
+                Mat eye = rotate_eye_window(frame, eyeROI, window);
+                float confidence;
+                Mat prepared;
+                Point2f center = process_eye(eye, prior, confidence, prepared);
+
+                CHECK(identical(prepared, full_prepared),
+                      "seed " << seed << " roi " << eyeROI << ": filtered pixels differ");
+                CHECK(identical(eye, full_eye),
+                      "seed " << seed << " roi " << eyeROI << ": blurred pixels differ");
+                CHECK(center == full_center && confidence == full_confidence,
+                      "seed " << seed << " roi " << eyeROI << ": center " << center << " "
+                              << confidence << " instead of " << full_center << " "
+                              << full_confidence);
+                compared++;
+            }
+        }
+    }
+    cout << "rotated window: compared " << compared << " ROIs" << endl;
+}
+
+// get_centermap as it was before its accumulation was rewritten as loops over a displacement table:
+// whole-image Mat arithmetic for every pixel with a gradient.
+Mat get_centermap_mats(Mat& eye_grey) {
+
+    // Calculate image gradients
+    Mat grad_x, grad_y;
+    Sobel(eye_grey, grad_x, CV_32F, 1, 0, 5);
+    Sobel(eye_grey, grad_y, CV_32F, 0, 1, 5);
+
+    // Get magnitudes of gradients, and calculate thresh
+    Mat mags;
+    Scalar mean, stddev;
+    magnitude(grad_x, grad_y, mags);
+    meanStdDev(mags, mean, stddev);
+    int mag_thresh = stddev.val[0] / 2 + mean.val[0];
+
+    // Threshold out gradients with mags which are too low
+    grad_x.setTo(0, mags < mag_thresh);
+    grad_y.setTo(0, mags < mag_thresh);
+
+    // Normalize gradients
+    grad_x = grad_x / (mags+1); // (+1 is hack to guard against div by 0)
+    grad_y = grad_y / (mags+1);
+
+    // Initialize 1d vectors of x and y indicies of Mat
+    vector<int> x_inds_vec, y_inds_vec;
+    for(int i = 0; i < eye_grey.size().width; i++)
+        x_inds_vec.push_back(i);
+    for(int i = 0; i < eye_grey.size().height; i++)
+        y_inds_vec.push_back(i);
+
+    // Repeat vectors to form indices Mats
+    Mat x_inds(x_inds_vec), y_inds(y_inds_vec);
+    x_inds = repeat(x_inds.t(), eye_grey.size().height, 1);
+    y_inds = repeat(y_inds, 1, eye_grey.size().width);
+    x_inds.convertTo(x_inds, CV_32F);	// Has to be float for arith. with dx, dy
+    y_inds.convertTo(y_inds, CV_32F);
+
+    // Set-up Mats for main loop
+    Mat ones = Mat::ones(x_inds.rows, x_inds.cols, CV_32F);	// for re-use with creating normalized disp. vecs
+    Mat darkness_weights = (255 - eye_grey) / DARKNESS_WEIGHT_SCALE;
+    Mat accumulator = Mat::zeros(eye_grey.size(), CV_32F);
+    Mat diffs, dx, dy;
+
+    // Loop over all pixels, testing each as a possible center
+    for(int y = 0; y < eye_grey.rows; ++y) {
+
+        // Get pointers for each row
+        float* grd_x_p = grad_x.ptr<float>(y);
+        float* grd_y_p = grad_y.ptr<float>(y);
+        uchar* d_w_p = darkness_weights.ptr<uchar>(y);
+
+        for(int x = 0; x < eye_grey.cols; ++x) {
+
+            // Deref and increment pointers
+            float grad_x_val = *grd_x_p++;
+            float grad_y_val = *grd_y_p++;
+
+            // Skip if no gradient
+            if(grad_x_val == 0 && grad_y_val == 0)
+                continue;
+
+            dx = ones * x - x_inds;
+            dy = ones * y - y_inds;
+
+            magnitude(dx, dy, mags);
+            dx = dx / mags;
+            dy = dy / mags;
+            // OpenCV 3, which the app is built with, gives 0 for 0/0 here. Later versions give NaN.
+            patchNaNs(dx, 0);
+            patchNaNs(dy, 0);
+
+            diffs = (dx * grad_x_val + dy * grad_y_val) * *d_w_p++;
+            diffs.setTo(0, diffs < 0);
+
+            accumulator = accumulator + diffs;
+        }
+    }
+
+    // Normalize and convert accumulator
+    accumulator = accumulator / eye_grey.total();
+    normalize(accumulator, accumulator, 0, 255, NORM_MINMAX);
+    accumulator.convertTo(accumulator, CV_8U);
+
+    return accumulator;
+}
+
+// Mean time of one call of centermap on eye, in microseconds.
+template <typename Centermap>
+double time_centermap(Mat& eye, int iterations, Centermap centermap) {
+    chrono::steady_clock::time_point start = chrono::steady_clock::now();
+    for (int i = 0; i < iterations; ++i)
+        centermap(eye);
+    chrono::duration<double, micro> elapsed = chrono::steady_clock::now() - start;
+    return elapsed.count() / iterations;
+}
+
+// Before/after benchmark of the centermap accumulation on ROIs of fastSize_width, the size the
+// exhaustive search runs at. The maps must be identical, and the loops at least
+// MIN_CENTERMAP_SPEEDUP times faster. The loops are timed as shipped, looking up the shared
+// displacement table on every call.
+void test_centermap_matches_mat_version() {
+    const double MIN_CENTERMAP_SPEEDUP = 10;
+    const int rows = fastSize_width * 3 / 4;
+    Mat frame = synthetic_frame(320, 240, 99);
+    double mats_micros = 0, loops_micros = 0;
+    int eyes = 0;
+    for (int y = 0; y + rows <= frame.rows; y += 60) {
+        for (int x = 0; x + fastSize_width <= frame.cols; x += 80) {
+            Mat eye = frame(Rect(x, y, fastSize_width, rows)).clone();
+            equalizeHist(eye, eye);
+            erase_specular(eye, true);
+            Mat loops = get_centermap(eye);
+            Mat mats = get_centermap_mats(eye);
+            CHECK(identical(loops, mats), "roi at " << x << ", " << y << ": centermaps differ");
+
+            mats_micros += time_centermap(eye, 20, get_centermap_mats);
+            loops_micros += time_centermap(eye, 200, get_centermap);
+            eyes++;
+        }
+    }
+    double speedup = mats_micros / loops_micros;
+    cout << "centermap " << fastSize_width << "x" << rows << ": Mats " << mats_micros / eyes
+         << " us, loops " << loops_micros / eyes << " us, " << speedup << "x over " << eyes
+         << " ROIs" << endl;
+    CHECK(speedup >= MIN_CENTERMAP_SPEEDUP, "speedup " << speedup << "x");
+}
+
+// A camera frame with one eye whose pupil is at center of the rotated frame, which is height wide
+// and width high, sized for the given inter-eye distance, with one to three glints on and around
+// the pupil. Like SyntheticEyes in the Java tests.
+Mat glint_eye_frame(int width, int height, Point2f center, float distance, RNG& rng) {
+    Mat rotated(width, height, CV_8UC1);
+    for (int y = 0; y < rotated.rows; ++y)
+        for (int x = 0; x < rotated.cols; ++x)
+            rotated.at<uchar>(y, x) = saturate_cast<uchar>(140 + 30 * x / height + 20 * y / width
+                                                           + rng.gaussian(4));
+    const int shift = 4;
+    const float one = 1 << shift;
+    Point c(cvRound(center.x * one), cvRound(center.y * one));
+    ellipse(rotated, c, Size(cvRound(0.18f * distance * one), cvRound(0.09f * distance * one)), 0,
+            0, 360, Scalar(210), -1, LINE_8, shift);
+    circle(rotated, c, cvRound(0.1f * distance * one), Scalar(100), -1, LINE_8, shift);
+    circle(rotated, c, cvRound(0.045f * distance * one), Scalar(25), -1, LINE_8, shift);
+    for (int i = rng.uniform(1, 4); i > 0; --i) {
+        float angle = rng.uniform(0.0f, (float) (2 * CV_PI));
+        float radius = rng.uniform(0.0f, 0.1f * distance);
+        Point glint(cvRound((center.x + radius * cos(angle)) * one),
+                    cvRound((center.y + radius * sin(angle)) * one));
+        circle(rotated, glint, cvRound((1 + rng.uniform(0.0f, 0.02f * distance)) * one),
+               Scalar(250), -1, LINE_8, shift);
+    }
+    Mat frame;
+    rotate(rotated, frame, ROTATE_90_CLOCKWISE);
+    return frame;
+}
+
+// Locates the pupil of each eye with the given specular suppression, and returns the number found
+// and their mean and max distance from the true pupil, and the mean time per eye in microseconds.
+void locate_glint_eyes(const vector<Mat>& frames, const vector<Point2f>& centers,
+                       const vector<float>& distances, bool fast, int& found, double& mean_error,
+                       double& max_error, double& micros) {
+    found = 0;
+    mean_error = max_error = 0;
+    LocatorScratch scratch;
+    float result[PUPIL_STRIDE];
+    chrono::steady_clock::time_point start = chrono::steady_clock::now();
+    for (size_t i = 0; i < frames.size(); ++i) {
+        locate_pupil(frames[i], centers[i].x, centers[i].y, distances[i], false, 0, 0, fast, result,
+                     scratch);
+        if (result[PUPIL_STATUS] == STATUS_FOUND) {
+            double error = hypot(result[PUPIL_X] - centers[i].x, result[PUPIL_Y] - centers[i].y);
+            found++;
+            mean_error += error;
+            max_error = std::max(max_error, error);
+        }
+    }
+    chrono::duration<double, micro> elapsed = chrono::steady_clock::now() - start;
+    mean_error /= std::max(found, 1);
+    micros = elapsed.count() / frames.size();
+}
+
+// Benchmark of the fast specular suppression against inpainting on eyes with glints. Both must find
+// at least MIN_FOUND of the pupils, clamping must be faster, and its mean error may only be
+// MAX_MEAN_ERROR_INCREASE pixels larger. Like SpecularSuppressionTest for the Java port.
+void test_clamp_is_as_accurate_as_inpainting() {
+    const int width = 320;
+    const int height = 240;
+    const int eyes = 100;
+    const int rounds = 3;
+    const double MIN_FOUND = 0.95;
+    const double MAX_MEAN_ERROR_INCREASE = 0.25;
+    RNG rng(11);
+    vector<Mat> frames;
+    vector<Point2f> centers;
+    vector<float> distances;
+    for (int i = 0; i < eyes; ++i) {
+        Point2f center(rng.uniform(60.0f, height - 60.0f), rng.uniform(60.0f, width - 60.0f));
+        float distance = rng.uniform(50.0f, 80.0f);
+        frames.push_back(glint_eye_frame(width, height, center, distance, rng));
+        centers.push_back(center);
+        distances.push_back(distance);
+    }
+
+    int inpaint_found = 0, clamp_found = 0;
+    double inpaint_mean = 0, inpaint_max = 0, clamp_mean = 0, clamp_max = 0;
+    double inpaint_micros = 1e30, clamp_micros = 1e30;
+    // Best time of a few rounds, the accuracy is the same in every round.
+    for (int round = 0; round < rounds; ++round) {
+        double micros;
+        locate_glint_eyes(frames, centers, distances, false, inpaint_found, inpaint_mean,
+                          inpaint_max, micros);
+        inpaint_micros = std::min(inpaint_micros, micros);
+        locate_glint_eyes(frames, centers, distances, true, clamp_found, clamp_mean, clamp_max,
+                          micros);
+        clamp_micros = std::min(clamp_micros, micros);
+    }
+    cout << "inpaint: " << inpaint_found << "/" << eyes << " found, mean error " << inpaint_mean
+         << " px, max error " << inpaint_max << " px, " << inpaint_micros << " us/eye" << endl;
+    cout << "clamp:   " << clamp_found << "/" << eyes << " found, mean error " << clamp_mean
+         << " px, max error " << clamp_max << " px, " << clamp_micros << " us/eye" << endl;
+    CHECK(inpaint_found >= MIN_FOUND * eyes, "inpaint found " << inpaint_found);
+    CHECK(clamp_found >= MIN_FOUND * eyes, "clamp found " << clamp_found);
+    CHECK(clamp_mean <= inpaint_mean + MAX_MEAN_ERROR_INCREASE,
+          "clamp mean error " << clamp_mean << ", inpaint " << inpaint_mean);
+    CHECK(clamp_micros < inpaint_micros,
+          "clamp " << clamp_micros << " us/eye, inpaint " << inpaint_micros);
+}
+
+int main() {
+    test_rotated_window_matches_full_frame();
+    test_centermap_matches_mat_version();
+    test_clamp_is_as_accurate_as_inpainting();
+    if (failures > 0) {
+        cerr << failures << " checks failed" << endl;
+        return 1;
+    }
+    cout << "all checks passed" << endl;
+    return 0;
+}
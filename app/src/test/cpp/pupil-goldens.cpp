@@ -0,0 +1,186 @@
+//
+// Writes the golden outputs of the native pupil locator that EyeCenterLocatorTest compares the Java
+// port against. Built with -DNATIVE_LIB_TESTS=ON, see CMakeLists.txt, and run as
+//
+//     pupil-goldens app/src/test/resources/pupil-goldens.bin
+//
+// The file holds little-endian int32 and float32 values: the magic GOLDEN_MAGIC, GOLDEN_VERSION and
+// the number of frames, then for each frame its width and height, its width * height luminance
+// bytes, the number of eyes and, for each eye, the EYE_STRIDE inputs and the first four
+// PUPIL_STRIDE fields of the result of locate_pupil, first with the fast specular suppression and
+// then with inpainting.
+//
+#include "../../main/cpp/native-lib.cpp"
+#include <fstream>
+
+const int GOLDEN_MAGIC = 0x444c4750; // "PGLD"
+const int GOLDEN_VERSION = 3;
+const int GOLDEN_FRAMES = 24;
+
+static void write_int(ofstream& out, int32_t value) {
+    out.write((const char*) &value, sizeof(value));
+}
+
+static void write_float(ofstream& out, float value) {
+    out.write((const char*) &value, sizeof(value));
+}
+
+// Draws an eye with its pupil at center into the rotated frame, sized for the given inter-eye
+// distance, with glints that make small bright blobs. Sometimes adds a large glare patch above the
+// pupil, like a reflection on glasses, with dark spots that make holes in it; the spots are wider
+// than the closing kernel, so that they survive it. So both kinds of contours occur, and both are
+// sometimes small enough to be erased as specularities.
+static void draw_eye(Mat& rotated, Point2f center, float distance, RNG& rng) {
+    const int shift = 4;
+    const float one = 1 << shift;
+    Point c(cvRound(center.x * one), cvRound(center.y * one));
+    ellipse(rotated, c, Size(cvRound(0.18f * distance * one), cvRound(0.09f * distance * one)), 0,
+            0, 360, Scalar(rng.uniform(190, 230)), -1, LINE_8, shift);
+    circle(rotated, c, cvRound(0.1f * distance * one), Scalar(rng.uniform(80, 130)), -1, LINE_8,
+           shift);
+    circle(rotated, c, cvRound(0.045f * distance * one), Scalar(rng.uniform(10, 40)), -1, LINE_8,
+           shift);
+    for (int i = rng.uniform(0, 3); i > 0; --i) {
+        Point glint(cvRound((center.x + rng.uniform(-0.06f, 0.06f) * distance) * one),
+                    cvRound((center.y + rng.uniform(-0.06f, 0.06f) * distance) * one));
+        circle(rotated, glint, cvRound(rng.uniform(0.5f, 0.04f * distance) * one),
+               Scalar(rng.uniform(230, 256)), -1, LINE_8, shift);
+    }
+    if (rng.uniform(0, 2) == 0) {
+        Point2f patch(center.x + rng.uniform(-0.08f, 0.08f) * distance,
+                      center.y - rng.uniform(0.2f, 0.3f) * distance);
+        ellipse(rotated, Point(cvRound(patch.x * one), cvRound(patch.y * one)),
+                Size(cvRound(rng.uniform(10.0f, 14.0f) * one), cvRound(rng.uniform(7.0f, 10.0f) * one)),
+                rng.uniform(-20, 20), 0, 360, Scalar(255), -1, LINE_8, shift);
+        for (int i = rng.uniform(1, 3); i > 0; --i) {
+            Point spot(cvRound((patch.x + rng.uniform(-4.0f, 4.0f)) * one),
+                       cvRound((patch.y + rng.uniform(-2.0f, 2.0f)) * one));
+            circle(rotated, spot, cvRound(rng.uniform(1.5f, 2.5f) * one),
+                   Scalar(rng.uniform(20, 120)), -1, LINE_8, shift);
+        }
+    }
+}
+
+// Returns an eye position in the rotated frame, which is height wide and width high, whose eye ROI
+// mostly fits inside the frame, so that most pupils are found. Half of the ROIs touch a frame edge
+// or corner, so that the padding of their window is clipped, and one in eight sticks out of the
+// frame.
+static Point2f place_eye(int width, int height, float distance, RNG& rng) {
+    int eye_width = EYE_ROI_PROPORTION_WIDTH * distance;
+    int eye_height = EYE_ROI_PROPORTION_HEIGHT * distance;
+    // Range of the ROI corner, see locate_pupil
+    int max_x = height - eye_width;
+    int max_y = width - eye_height;
+    int roi_x = rng.uniform(0, max_x + 1);
+    int roi_y = rng.uniform(0, max_y + 1);
+    // The four edges and the four corners: -1 moves the ROI to the low end, 1 to the high end
+    static const int EDGE_X[] = {-1, 1, 0, 0, -1, -1, 1, 1};
+    static const int EDGE_Y[] = {0, 0, -1, 1, -1, 1, -1, 1};
+    int placement = rng.uniform(0, 16);
+    if (placement < 8) {
+        if (EDGE_X[placement] != 0)
+            roi_x = EDGE_X[placement] < 0 ? 0 : max_x;
+        if (EDGE_Y[placement] != 0)
+            roi_y = EDGE_Y[placement] < 0 ? 0 : max_y;
+    } else if (placement == 8) {
+        roi_x = -eye_width / 3;
+    } else if (placement == 9) {
+        roi_y = max_y + eye_height / 3;
+    }
+    // locate_pupil places the ROI around the truncated eye position
+    return Point2f(roi_x + eye_width / 2 + rng.uniform(0.0f, 0.99f),
+                   roi_y + (eye_height * 3) / 5 + rng.uniform(0.0f, 0.99f));
+}
+
+int main(int argc, char** argv) {
+    if (argc != 2) {
+        cerr << "usage: " << argv[0] << " <output file>" << endl;
+        return 2;
+    }
+    ofstream out(argv[1], ios::binary);
+    write_int(out, GOLDEN_MAGIC);
+    write_int(out, GOLDEN_VERSION);
+    write_int(out, GOLDEN_FRAMES);
+
+    RNG rng(20171113);
+    int cases = 0, found = 0, inpaint_found = 0;
+    for (int f = 0; f < GOLDEN_FRAMES; ++f) {
+        // Small frames, with room for about two eyes. The rotated frame is height wide and width
+        // high.
+        int width = rng.uniform(100, 160);
+        int height = rng.uniform(80, 140);
+        Mat rotated(width, height, CV_8UC1);
+        for (int y = 0; y < rotated.rows; ++y)
+            for (int x = 0; x < rotated.cols; ++x)
+                rotated.at<uchar>(y, x) = saturate_cast<uchar>(120 + 40 * x / height + rng.gaussian(6));
+
+        int eye_count = rng.uniform(1, 3);
+        vector<float> eyes;
+        vector<Rect> taken;
+        for (int e = 0; e < eye_count; ++e) {
+            // The eyes of a frame do not overlap, with a margin for the glints and the patch
+            float distance;
+            Point2f position;
+            Rect roi;
+            bool overlaps;
+            int attempts = 0;
+            do {
+                distance = rng.uniform(40.0f, 90.0f);
+                position = place_eye(width, height, distance, rng);
+                int eye_width = EYE_ROI_PROPORTION_WIDTH * distance;
+                int eye_height = EYE_ROI_PROPORTION_HEIGHT * distance;
+                roi = Rect(int(position.x) - eye_width / 2 - 4,
+                           int(position.y) - (eye_height * 3) / 5 - 4, eye_width + 8,
+                           eye_height + 8);
+                overlaps = false;
+                for (size_t i = 0; i < taken.size(); ++i)
+                    overlaps |= (roi & taken[i]).area() > 0;
+            } while (overlaps && ++attempts < 100);
+            if (overlaps)
+                break;
+            taken.push_back(roi);
+            // The pupil is off the detected eye position by a little
+            Point2f center(position.x + rng.uniform(-2.0f, 2.0f),
+                           position.y + rng.uniform(-2.0f, 2.0f));
+            draw_eye(rotated, center, distance, rng);
+            // Without a prior, and with a prior near the pupil, so that both the full search and
+            // the tracking run
+            float eye[EYE_STRIDE] = {position.x, position.y, distance, 0, 0, 0};
+            eyes.insert(eyes.end(), eye, eye + EYE_STRIDE);
+            eye[EYE_HAS_PRIOR] = 1;
+            eye[EYE_PRIOR_X] = center.x + rng.uniform(-1.5f, 1.5f);
+            eye[EYE_PRIOR_Y] = center.y + rng.uniform(-1.5f, 1.5f);
+            eyes.insert(eyes.end(), eye, eye + EYE_STRIDE);
+        }
+
+        Mat frame;
+        rotate(rotated, frame, ROTATE_90_CLOCKWISE);
+        write_int(out, frame.cols);
+        write_int(out, frame.rows);
+        out.write((const char*) frame.data, frame.total());
+
+        int count = eyes.size() / EYE_STRIDE;
+        write_int(out, count);
+        LocatorScratch scratch;
+        for (int i = 0; i < count; ++i) {
+            const float* eye = &eyes[i * EYE_STRIDE];
+            for (int k = 0; k < EYE_STRIDE; ++k)
+                write_float(out, eye[k]);
+            float result[PUPIL_STRIDE];
+            locate_pupil(frame, eye[EYE_X], eye[EYE_Y], eye[EYE_DISTANCE], eye[EYE_HAS_PRIOR] != 0,
+                         eye[EYE_PRIOR_X], eye[EYE_PRIOR_Y], true, result, scratch);
+            for (int k = 0; k < PUPIL_MICROS; ++k)
+                write_float(out, result[k]);
+            found += result[PUPIL_STATUS] == STATUS_FOUND;
+            locate_pupil(frame, eye[EYE_X], eye[EYE_Y], eye[EYE_DISTANCE], eye[EYE_HAS_PRIOR] != 0,
+                         eye[EYE_PRIOR_X], eye[EYE_PRIOR_Y], false, result, scratch);
+            for (int k = 0; k < PUPIL_MICROS; ++k)
+                write_float(out, result[k]);
+            inpaint_found += result[PUPIL_STATUS] == STATUS_FOUND;
+            cases++;
+        }
+    }
+    cout << "wrote " << cases << " eyes, " << found << " found with the fast specular suppression, "
+         << inpaint_found << " with inpainting" << endl;
+    return out.good() ? 0 : 1;
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.face.googlyeyes;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the Java pupil locator with golden results of the native one.  pupil-goldens.bin is
+ * written by app/src/test/cpp/pupil-goldens.cpp, built against a desktop OpenCV 4.  Its synthetic
+ * frames have eye windows clipped by the frame edges, glints, and glare patches with dark spots that
+ * make small holes in the specular threshold.  Every eye has the results of both specular
+ * suppression modes, so that the clamp and the port of OpenCV's Telea inpainting are both checked.
+ */
+public class EyeCenterLocatorTest {
+    private static final int GOLDEN_MAGIC = 0x444c4750;
+    private static final int GOLDEN_VERSION = 3;
+    // Positions and confidences are computed with the same float operations, up to the order of a
+    // few sums.
+    private static final float TOLERANCE = 1e-3f;
+
+    @Test
+    public void matchesNativeGoldens() throws IOException {
+        ByteBuffer goldens = readGoldens();
+        assertEquals(GOLDEN_MAGIC, goldens.getInt());
+        assertEquals(GOLDEN_VERSION, goldens.getInt());
+        int frames = goldens.getInt();
+
+        EyeCenterLocator fast = new EyeCenterLocator(true);
+        EyeCenterLocator inpaint = new EyeCenterLocator(false);
+        float[] eye = new float[PupilExecutor.EYE_STRIDE];
+        float[] pupil = new float[PupilExecutor.PUPIL_STRIDE];
+        int eyes = 0;
+        int fastFound = 0;
+        int inpaintFound = 0;
+        for (int f = 0; f < frames; ++f) {
+            int width = goldens.getInt();
+            int height = goldens.getInt();
+            byte[] pixels = new byte[width * height];
+            goldens.get(pixels);
+            ByteBuffer frame = ByteBuffer.wrap(pixels);
+
+            int count = goldens.getInt();
+            for (int e = 0; e < count; ++e) {
+                for (int k = 0; k < PupilExecutor.EYE_STRIDE; ++k) {
+                    eye[k] = goldens.getFloat();
+                }
+                ++eyes;
+                String name = "frame " + f + " eye " + e;
+                if (checkGolden(goldens, fast, frame, height, width, eye, pupil, name + " clamp")) {
+                    ++fastFound;
+                }
+                if (checkGolden(goldens, inpaint, frame, height, width, eye, pupil,
+                        name + " inpaint")) {
+                    ++inpaintFound;
+                }
+            }
+        }
+        // Most eyes must be found, so that the goldens check the positions and not only failures
+        assertTrue("found " + fastFound + " of " + eyes + " with the clamp", 2 * fastFound > eyes);
+        assertTrue("found " + inpaintFound + " of " + eyes + " with inpainting",
+                2 * inpaintFound > eyes);
+        assertEquals(0, goldens.remaining());
+    }
+
+    //==============================================================================================
+    // Private
+    //==============================================================================================
+
+    /**
+     * Locates the eye with the locator and compares the result with the next golden.  Returns true
+     * if the pupil was found.
+     */
+    private static boolean checkGolden(ByteBuffer goldens, EyeCenterLocator locator,
+                                       ByteBuffer frame, int height, int width, float[] eye,
+                                       float[] pupil, String name) {
+        locator.locatePupils(frame, height, width, eye, 1, pupil);
+        for (int k = 0; k < PupilExecutor.PUPIL_MICROS; ++k) {
+            assertEquals(name + " field " + k, goldens.getFloat(), pupil[k], TOLERANCE);
+        }
+        return pupil[PupilExecutor.PUPIL_STATUS] == PupilExecutor.STATUS_FOUND;
+    }
+
+    private ByteBuffer readGoldens() throws IOException {
+        InputStream in = getClass().getResourceAsStream("/pupil-goldens.bin");
+        assertNotNull("missing pupil-goldens.bin", in);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            for (int n; (n = in.read(buffer)) > 0; ) {
+                bytes.write(buffer, 0, n);
+            }
+            return ByteBuffer.wrap(bytes.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+        } finally {
+            in.close();
+        }
+    }
+}
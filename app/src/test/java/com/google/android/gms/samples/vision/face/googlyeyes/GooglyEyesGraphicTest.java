@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.face.googlyeyes;
+
+import android.graphics.Canvas;
+import android.graphics.PointF;
+
+import com.google.android.gms.samples.vision.face.googlyeyes.ui.camera.GraphicOverlay;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests that {@link GooglyEyesGraphic} publishes and draws eye states without allocating.  The
+ * Android classes are the stubs of the unit test runtime, so the canvas draws nothing.
+ */
+public class GooglyEyesGraphicTest {
+    private static final int UPDATES = 100000;
+    private static final int WARMUP_ROUNDS = 5;
+
+    @Test
+    public void updatesAndDrawsDoNotAllocate() {
+        PipelineStats stats = new PipelineStats();
+        GooglyEyesGraphic graphic = new GooglyEyesGraphic(new GraphicOverlay(null, null), stats);
+        Canvas canvas = new Canvas();
+        // The fields are set directly, since the stub constructors of PointF do not set them.
+        PointF left = new PointF();
+        PointF right = new PointF();
+        // Until the updates are compiled, switching to the compiled code may allocate.
+        for (int i = 0; i < WARMUP_ROUNDS; ++i) {
+            runFrames(graphic, canvas, left, right, i * UPDATES);
+        }
+
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        runFrames(graphic, canvas, left, right, WARMUP_ROUNDS * UPDATES);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        assertEquals("bytes allocated for " + UPDATES + " frames", 0, allocated);
+    }
+
+    // Drives the graphic like the trackers and the renderer: every frame updates the eyes and the
+    // pupils, some without a pupil or with closed eyes, and draws the result.
+    private static void runFrames(GooglyEyesGraphic graphic, Canvas canvas, PointF left,
+                                  PointF right, long firstFrame) {
+        for (int i = 0; i < UPDATES; ++i) {
+            left.x = 100.0f + i % 50;
+            left.y = 120.0f;
+            right.x = 180.0f + i % 50;
+            right.y = 122.0f;
+            graphic.updateEyes(firstFrame + i, System.nanoTime(), left, i % 7 != 0, right,
+                    i % 7 != 0);
+            graphic.updatePupils(i % 5 != 0, left.x + 1.0f, left.y, true, right.x - 1.0f,
+                    right.y);
+            graphic.draw(canvas);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.face.googlyeyes;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that {@link LandmarkProportions} approximates landmarks within a moved face, and that the
+ * trackers can record and approximate landmarks on every update without allocating.
+ */
+public class LandmarkProportionsTest {
+    private static final int LEFT_EYE = 4;
+    private static final int RIGHT_EYE = 10;
+    private static final int UPDATES = 100000;
+    private static final int WARMUP_ROUNDS = 5;
+
+    @Test
+    public void approximatesWithinTheNewBoundingBox() {
+        LandmarkProportions proportions = new LandmarkProportions();
+        assertFalse(proportions.has(LEFT_EYE));
+
+        // Left eye at a quarter of the width and a third of the height of the face.
+        proportions.record(LEFT_EYE, 35.0f, 50.0f, 10.0f, 20.0f, 100.0f, 90.0f);
+        assertTrue(proportions.has(LEFT_EYE));
+        assertFalse(proportions.has(RIGHT_EYE));
+
+        // The face moved and doubled in size.
+        assertEquals(250.0f, proportions.getX(LEFT_EYE, 200.0f, 200.0f), 1e-4f);
+        assertEquals(160.0f, proportions.getY(LEFT_EYE, 100.0f, 180.0f), 1e-4f);
+    }
+
+    @Test
+    public void ignoresUnknownTypes() {
+        LandmarkProportions proportions = new LandmarkProportions();
+        proportions.record(-1, 1.0f, 1.0f, 0.0f, 0.0f, 10.0f, 10.0f);
+        proportions.record(LandmarkProportions.TYPE_COUNT, 1.0f, 1.0f, 0.0f, 0.0f, 10.0f, 10.0f);
+        assertFalse(proportions.has(-1));
+        assertFalse(proportions.has(LandmarkProportions.TYPE_COUNT));
+    }
+
+    @Test
+    public void updatesDoNotAllocate() {
+        LandmarkProportions proportions = new LandmarkProportions();
+        float[] eyes = new float[2];
+        // Until the updates are compiled, switching to the compiled code may allocate.
+        for (int i = 0; i < WARMUP_ROUNDS; ++i) {
+            runUpdates(proportions, eyes, UPDATES);
+        }
+
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        runUpdates(proportions, eyes, UPDATES);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        assertEquals("bytes allocated for " + UPDATES + " updates", 0, allocated);
+        assertTrue(eyes[0] > 0.0f && eyes[1] > 0.0f);
+    }
+
+    // Drives the proportions like a tracker: every update records the landmarks that were detected,
+    // every other one lacks the right eye, which is approximated from the moving face instead.
+    private static void runUpdates(LandmarkProportions proportions, float[] eyes, int updates) {
+        for (int i = 0; i < updates; ++i) {
+            float faceX = 100.0f + i % 50;
+            float faceY = 80.0f + i % 30;
+            float faceWidth = 200.0f + i % 20;
+            float faceHeight = 240.0f + i % 20;
+            proportions.record(LEFT_EYE, faceX + 0.3f * faceWidth, faceY + 0.4f * faceHeight,
+                    faceX, faceY, faceWidth, faceHeight);
+            if (i % 2 == 0) {
+                proportions.record(RIGHT_EYE, faceX + 0.7f * faceWidth, faceY + 0.4f * faceHeight,
+                        faceX, faceY, faceWidth, faceHeight);
+            } else if (proportions.has(RIGHT_EYE)) {
+                eyes[0] = proportions.getX(RIGHT_EYE, faceX, faceWidth);
+                eyes[1] = proportions.getY(RIGHT_EYE, faceY, faceHeight);
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.face.googlyeyes;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the bucket boundaries of {@link LatencyHistogram}, its percentiles and the difference of two
+ * snapshots.
+ */
+public class LatencyHistogramTest {
+    // Latencies above this fall into the last bucket, whose upper edge it is.
+    private static final long MAX_SEPARATE_NANOS = (1L << 36) - 1;
+
+    @Test
+    public void smallLatenciesAreExact() {
+        for (long nanos = 0; nanos < 16; ++nanos) {
+            assertEquals(nanos, upperEdgeOf(nanos));
+        }
+        assertEquals(0, upperEdgeOf(-5));
+    }
+
+    @Test
+    public void bucketsSplitEveryPowerOfTwo() {
+        // 16 to 31 still have buckets of one nanosecond, 32 to 63 of two.
+        assertEquals(16, upperEdgeOf(16));
+        assertEquals(31, upperEdgeOf(31));
+        assertEquals(33, upperEdgeOf(32));
+        assertEquals(33, upperEdgeOf(33));
+        assertEquals(35, upperEdgeOf(34));
+        assertEquals(63, upperEdgeOf(62));
+        assertEquals(67, upperEdgeOf(64));
+        // One millisecond lies in the bucket from 983040 to 1015807.
+        assertEquals(1015807, upperEdgeOf(1000000));
+        assertEquals(1015807, upperEdgeOf(983040));
+        assertEquals(983039, upperEdgeOf(983039));
+    }
+
+    @Test
+    public void bucketsAreWithinOneSixteenth() {
+        for (long nanos = 1; nanos < MAX_SEPARATE_NANOS; nanos = nanos * 3 / 2 + 1) {
+            long edge = upperEdgeOf(nanos);
+            assertTrue(nanos + " -> " + edge, edge >= nanos && edge - nanos <= nanos / 16);
+        }
+    }
+
+    @Test
+    public void longLatenciesFallIntoTheLastBucket() {
+        assertEquals(MAX_SEPARATE_NANOS, upperEdgeOf(MAX_SEPARATE_NANOS));
+        assertEquals(MAX_SEPARATE_NANOS, upperEdgeOf(MAX_SEPARATE_NANOS + 1));
+        assertEquals(MAX_SEPARATE_NANOS, upperEdgeOf(Long.MAX_VALUE));
+        // About 68 seconds
+        assertEquals(68.7, MAX_SEPARATE_NANOS / 1e9, 0.1);
+    }
+
+    @Test
+    public void percentilesPickTheRankedSample() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        LatencyHistogram.Snapshot snapshot = new LatencyHistogram.Snapshot();
+        histogram.snapshot(snapshot);
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getPercentile(50));
+
+        for (long nanos = 0; nanos < 10; ++nanos) {
+            histogram.record(nanos);
+        }
+        histogram.snapshot(snapshot);
+        assertEquals(10, snapshot.getCount());
+        assertEquals(0, snapshot.getPercentile(0));
+        assertEquals(0, snapshot.getPercentile(10));
+        assertEquals(4, snapshot.getPercentile(50));
+        assertEquals(5, snapshot.getPercentile(51));
+        assertEquals(8, snapshot.getPercentile(90));
+        assertEquals(9, snapshot.getPercentile(100));
+    }
+
+    @Test
+    public void differenceHoldsTheSamplesInBetween() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        LatencyHistogram.Snapshot earlier = new LatencyHistogram.Snapshot();
+        LatencyHistogram.Snapshot later = new LatencyHistogram.Snapshot();
+        LatencyHistogram.Snapshot window = new LatencyHistogram.Snapshot();
+        for (int i = 0; i < 100; ++i) {
+            histogram.record(1000000);
+        }
+        histogram.snapshot(earlier);
+        for (int i = 0; i < 10; ++i) {
+            histogram.record(5);
+            histogram.record(7);
+        }
+        histogram.snapshot(later);
+
+        window.difference(later, earlier);
+        assertEquals(20, window.getCount());
+        assertEquals(5, window.getPercentile(50));
+        assertEquals(7, window.getPercentile(100));
+        // The earlier samples still dominate the whole history
+        assertEquals(1015807, later.getPercentile(50));
+
+        window.difference(later, later);
+        assertEquals(0, window.getCount());
+        assertEquals(0, window.getPercentile(99));
+
+        histogram.clear();
+        histogram.snapshot(window);
+        assertEquals(0, window.getCount());
+    }
+
+    // Returns the value a histogram with the single sample nanos reports for every percentile.
+    private static long upperEdgeOf(long nanos) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(nanos);
+        LatencyHistogram.Snapshot snapshot = new LatencyHistogram.Snapshot();
+        histogram.snapshot(snapshot);
+        return snapshot.getPercentile(100);
+    }
+}
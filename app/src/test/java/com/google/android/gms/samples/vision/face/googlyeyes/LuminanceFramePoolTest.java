@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.face.googlyeyes;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests the reference counting of {@link LuminanceFramePool}, and that recycling frames does not
+ * allocate once the buffers have reached the preview size.
+ */
+public class LuminanceFramePoolTest {
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final int FRAMES = 1000;
+    // Two pupil jobs per frame, as with one face.
+    private static final int JOBS_PER_FRAME = 2;
+
+    @Test
+    public void obtainReturnsNullWhenAllFramesAreHeld() {
+        LuminanceFramePool pool = new LuminanceFramePool(2);
+        LuminanceFrame first = pool.obtain();
+        LuminanceFrame second = pool.obtain();
+        assertNotNull(first);
+        assertNotNull(second);
+        assertNull(pool.obtain());
+
+        first.release();
+        assertSame(first, pool.obtain());
+    }
+
+    @Test
+    public void publishedFrameIsRecycledOnceJobsReleaseIt() {
+        LuminanceFramePool pool = new LuminanceFramePool(2);
+        LuminanceFrame first = pool.obtain();
+        pool.publish(first);
+        first.retain();
+
+        pool.publish(pool.obtain());
+        assertNull(pool.obtain());
+
+        first.release();
+        assertSame(first, pool.obtain());
+    }
+
+    @Test
+    public void recyclingFramesDoesNotAllocate() {
+        LuminanceFramePool pool = new LuminanceFramePool(3 + JOBS_PER_FRAME);
+        byte[] yuv = new byte[WIDTH * HEIGHT * 3 / 2];
+        LuminanceFrame[] held = new LuminanceFrame[JOBS_PER_FRAME];
+
+        // The first frames grow the buffers to the preview size.
+        runFrames(pool, yuv, held, FRAMES);
+
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        int skipped = runFrames(pool, yuv, held, FRAMES);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        assertEquals(0, skipped);
+        assertEquals("bytes allocated for " + FRAMES + " frames", 0, allocated);
+    }
+
+    // Drives the pool like the detector thread: the jobs of a frame release it only after the next
+    // frame has been published.  Returns the number of frames for which no buffer was free.
+    private static int runFrames(LuminanceFramePool pool, byte[] yuv, LuminanceFrame[] held,
+                                 int frames) {
+        int skipped = 0;
+        for (int i = 0; i < frames; ++i) {
+            LuminanceFrame frame = pool.obtain();
+            if (frame == null) {
+                ++skipped;
+                continue;
+            }
+            frame.fill(yuv, WIDTH, HEIGHT, i, i * 33L, i * 33000000L);
+            pool.publish(frame);
+            for (int j = 0; j < held.length; ++j) {
+                if (held[j] != null) {
+                    held[j].release();
+                }
+                frame.retain();
+                held[j] = frame;
+            }
+        }
+        return skipped;
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.face.googlyeyes;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives {@link PreviewGovernor} with simulated latency traces, in which every mode has a fixed
+ * latency, and checks that it settles on the most expensive mode that keeps up and retries the
+ * others less and less often.
+ */
+public class PreviewGovernorTest {
+    private static final long BUDGET_NANOS = 50000000L;
+    private static final int WINDOW_FRAMES = 10;
+    private static final PreviewGovernor.Mode[] MODES = {
+            new PreviewGovernor.Mode(240, 160, 15.0f),
+            new PreviewGovernor.Mode(320, 240, 15.0f),
+            new PreviewGovernor.Mode(320, 240, 30.0f),
+            new PreviewGovernor.Mode(640, 480, 30.0f),
+    };
+    // Latencies of the cheap modes, and of the modes that cannot keep up.
+    private static final long FAST_NANOS = BUDGET_NANOS / 4;
+    private static final long SLOW_NANOS = BUDGET_NANOS * 2;
+
+    private PreviewGovernor mGovernor;
+    // Windows run so far, and the windows at which the governor stepped up into the top mode and
+    // back down from it.
+    private int mWindow;
+    private final List<Integer> mTopAttempts = new ArrayList<>();
+    private final List<Integer> mTopFailures = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mGovernor = new PreviewGovernor(MODES, 2, BUDGET_NANOS, WINDOW_FRAMES);
+    }
+
+    @Test
+    public void stepsDownWhenOverBudget() {
+        runWindows(1, SLOW_NANOS, SLOW_NANOS, 0);
+        assertEquals(1, mGovernor.getModeIndex());
+    }
+
+    @Test
+    public void stepsDownWhenDropping() {
+        runWindows(1, FAST_NANOS, FAST_NANOS, 1);
+        assertEquals(1, mGovernor.getModeIndex());
+    }
+
+    @Test
+    public void holdsTheTopModeWhenItKeepsUp() {
+        runWindows(50, FAST_NANOS, FAST_NANOS, 0);
+        assertEquals(MODES.length - 1, mGovernor.getModeIndex());
+        assertEquals(1, mTopAttempts.size());
+    }
+
+    /**
+     * The top mode is over budget.  Without backoff, the governor would retry it every eight
+     * windows, i.e. 125 times; with it, the time until each retry doubles until it reaches the
+     * limit.
+     */
+    @Test
+    public void backsOffFromAModeThatFails() {
+        runWindows(1000, FAST_NANOS, SLOW_NANOS, 0);
+
+        int[] delays = getRetryDelays();
+        assertTrue("retried " + mTopAttempts.size() + " times", mTopAttempts.size() <= 20);
+        for (int i = 1; i < delays.length; ++i) {
+            // The calm windows double for each of the first four failures, after a settle window.
+            if (i < 4) {
+                assertEquals("delays " + toString(delays), 2 * delays[i - 1] - 1, delays[i]);
+            } else {
+                assertEquals("delays " + toString(delays), delays[i - 1], delays[i]);
+            }
+        }
+        assertEquals(MODES.length - 2, mGovernor.getModeIndex());
+    }
+
+    /**
+     * A mode that held long enough forgets its failures, so that a later failure is retried as soon
+     * as the first one was.
+     */
+    @Test
+    public void forgetsFailuresOfAModeThatHeld() {
+        runWindows(200, FAST_NANOS, SLOW_NANOS, 0);
+        int firstDelay = getRetryDelays()[0];
+
+        // The top mode keeps up now, until it is steady, and then fails once more.
+        runWindows(400, FAST_NANOS, FAST_NANOS, 0);
+        assertEquals(MODES.length - 1, mGovernor.getModeIndex());
+        mTopAttempts.clear();
+        mTopFailures.clear();
+        runWindows(1, FAST_NANOS, SLOW_NANOS, 0);
+        runWindows(100, FAST_NANOS, FAST_NANOS, 0);
+        assertEquals(firstDelay, getRetryDelays()[0]);
+    }
+
+    //==============================================================================================
+    // Private
+    //==============================================================================================
+
+    /**
+     * Feeds the given number of windows, in which the top mode has the latency topNanos and the
+     * other modes cheapNanos, and each frame is preceded by the given number of dropped frames.
+     */
+    private void runWindows(int windows, long cheapNanos, long topNanos, int drops) {
+        for (int w = 0; w < windows; ++w) {
+            ++mWindow;
+            for (int f = 0; f < WINDOW_FRAMES; ++f) {
+                boolean top = mGovernor.getModeIndex() == MODES.length - 1;
+                if (mGovernor.onFrame(top ? topNanos : cheapNanos, drops)) {
+                    (top ? mTopFailures : mTopAttempts).add(mWindow);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the windows from each failure of the top mode until it was retried.
+     */
+    private int[] getRetryDelays() {
+        List<Integer> attempts = new ArrayList<>();
+        for (int attempt : mTopAttempts) {
+            if (!mTopFailures.isEmpty() && attempt > mTopFailures.get(0)) {
+                attempts.add(attempt);
+            }
+        }
+        int[] delays = new int[attempts.size()];
+        for (int i = 0; i < delays.length; ++i) {
+            delays[i] = attempts.get(i) - mTopFailures.get(i);
+        }
+        return delays;
+    }
+
+    private static String toString(int[] values) {
+        StringBuilder text = new StringBuilder();
+        for (int value : values) {
+            text.append(value).append(' ');
+        }
+        return text.toString();
+    }
+}
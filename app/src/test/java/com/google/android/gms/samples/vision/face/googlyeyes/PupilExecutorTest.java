@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.face.googlyeyes;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that {@link PupilExecutor} runs submitted jobs, batches the jobs of a frame, counts the jobs
+ * it drops and that its idle workers are parked rather than spinning.
+ */
+public class PupilExecutorTest {
+    private static final int THREAD_COUNT = 2;
+    private static final long IDLE_MILLIS = 500;
+    // CPU time the idle workers may use together while parked, for wakeups of the JVM.
+    private static final long MAX_IDLE_CPU_NANOS = 20000000L;
+
+    private final ThreadMXBean mThreads = ManagementFactory.getThreadMXBean();
+    private LuminanceFramePool mPool;
+    private LuminanceFrame mFrame;
+    private CountDownLatch mLocated;
+    // Sizes of the batches handed to the locator.
+    private final List<Integer> mBatches = new ArrayList<>();
+    private PupilExecutor mExecutor;
+
+    @Before
+    public void setUp() {
+        mPool = new LuminanceFramePool(2);
+        mFrame = mPool.obtain();
+        mFrame.fill(new byte[4], 2, 2, 1, 0, 0);
+        mLocated = new CountDownLatch(0);
+        mExecutor = new PupilExecutor(THREAD_COUNT, 16, 16, new PupilExecutor.Locator() {
+            @Override
+            public void locatePupils(LuminanceFrame frame, float[] eyes, int count,
+                                     float[] pupils) {
+                synchronized (mBatches) {
+                    mBatches.add(count);
+                }
+                for (int i = 0; i < count; ++i) {
+                    pupils[i * PupilExecutor.PUPIL_STRIDE + PupilExecutor.PUPIL_STATUS] =
+                            PupilExecutor.STATUS_FOUND;
+                }
+            }
+        }, new PupilExecutor.Listener() {
+            @Override
+            public void onPupilLocated(PupilExecutor.Job job) {
+                mLocated.countDown();
+            }
+        });
+        mExecutor.start();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        mExecutor.shutdown();
+        for (Thread worker : findWorkers()) {
+            worker.join();
+        }
+    }
+
+    @Test
+    public void idleWorkersAreParked() throws InterruptedException {
+        assertWorkersIdle();
+    }
+
+    @Test
+    public void workersParkAgainAfterJobs() throws InterruptedException {
+        mLocated = new CountDownLatch(2);
+        mExecutor.submit(mFrame, 1, PupilExecutor.LEFT_EYE, 10, 10, 20, false, 0, 0);
+        mExecutor.submit(mFrame, 1, PupilExecutor.RIGHT_EYE, 30, 10, 20, false, 0, 0);
+        assertTrue(mLocated.await(1, TimeUnit.SECONDS));
+
+        assertWorkersIdle();
+    }
+
+    @Test
+    public void jobsOfAFrameShareOneBatch() throws InterruptedException {
+        mLocated = new CountDownLatch(4);
+        // Like the trackers, submits the eyes of a face together.  The second face joins the batch
+        // because its frame is still queued.
+        synchronized (mExecutor) {
+            mExecutor.submit(mFrame, 1, PupilExecutor.LEFT_EYE, 10, 10, 20, false, 0, 0);
+            mExecutor.submit(mFrame, 1, PupilExecutor.RIGHT_EYE, 30, 10, 20, false, 0, 0);
+            mExecutor.submit(mFrame, 2, PupilExecutor.LEFT_EYE, 10, 40, 20, false, 0, 0);
+            mExecutor.submit(mFrame, 2, PupilExecutor.RIGHT_EYE, 30, 40, 20, false, 0, 0);
+        }
+        assertTrue(mLocated.await(1, TimeUnit.SECONDS));
+
+        synchronized (mBatches) {
+            assertEquals(1, mBatches.size());
+            assertEquals(4, (int) mBatches.get(0));
+        }
+        assertWorkersIdle();
+    }
+
+    @Test
+    public void countsDroppedJobs() throws InterruptedException {
+        mLocated = new CountDownLatch(16);
+        synchronized (mExecutor) {
+            // Replaces the queued job of the same eye
+            mExecutor.submit(mFrame, 0, PupilExecutor.LEFT_EYE, 10, 10, 20, false, 0, 0);
+            mExecutor.submit(mFrame, 0, PupilExecutor.LEFT_EYE, 12, 10, 20, false, 0, 0);
+            // Fills the queue of 16 jobs, and evicts the oldest one
+            for (int face = 1; face <= 16; ++face) {
+                mExecutor.submit(mFrame, face, PupilExecutor.LEFT_EYE, 10, 10, 20, false, 0, 0);
+            }
+        }
+        assertTrue(mLocated.await(1, TimeUnit.SECONDS));
+
+        assertEquals(2, mExecutor.takeDroppedJobs());
+        assertEquals(0, mExecutor.takeDroppedJobs());
+    }
+
+    // Checks that every worker is waiting, and stays nearly without CPU time for IDLE_MILLIS.
+    private void assertWorkersIdle() throws InterruptedException {
+        List<Thread> workers = findWorkers();
+        assertEquals(THREAD_COUNT, workers.size());
+        // Give the workers time to reach wait()
+        Thread.sleep(50);
+
+        long before = 0;
+        for (Thread worker : workers) {
+            before += mThreads.getThreadCpuTime(worker.getId());
+        }
+        Thread.sleep(IDLE_MILLIS);
+        long used = -before;
+        for (Thread worker : workers) {
+            assertEquals(Thread.State.WAITING, worker.getState());
+            used += mThreads.getThreadCpuTime(worker.getId());
+        }
+        assertTrue("idle workers used " + used + " ns of CPU", used < MAX_IDLE_CPU_NANOS);
+    }
+
+    private static List<Thread> findWorkers() {
+        List<Thread> workers = new ArrayList<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("PupilWorker") && thread.isAlive()) {
+                workers.add(thread);
+            }
+        }
+        return workers;
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.face.googlyeyes;
+
+import org.junit.Test;
+
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Throughput of per-face pupil refinement for 1 to 8 synthetic faces.  Every frame submits the jobs
+ * of all faces, like the trackers do, and waits until all of them are located by the Java backend.
+ * Prints the frames and pupils per second for each face count, and checks that every eye of every
+ * face got its own result.
+ */
+public class PupilThroughputTest {
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final int MAX_FACES = 8;
+    private static final int FRAMES = 100;
+    private static final float DISTANCE = 60.0f;
+    // Largest distance of a located pupil from the drawn one, half the iris radius.  This only
+    // checks that each result belongs to its own eye, accuracy is not measured here.
+    private static final float MAX_ERROR = 3.0f;
+
+    private final LuminanceFramePool mPool = new LuminanceFramePool(4);
+    // Eye positions per face and side, and the results of the current frame.  Guarded by this.
+    private final float[] mEyeX = new float[2 * MAX_FACES];
+    private final float[] mEyeY = new float[2 * MAX_FACES];
+    private final int[] mResults = new int[2 * MAX_FACES];
+    private int mPending;
+    private float mMaxError;
+
+    @Test
+    public void locatesEveryFace() throws InterruptedException {
+        PupilExecutor executor = new PupilExecutor(2, 2 * MAX_FACES, 16,
+                new PupilExecutor.Locator() {
+                    private final ThreadLocal<EyeCenterLocator> mLocators =
+                            new ThreadLocal<EyeCenterLocator>() {
+                                @Override
+                                protected EyeCenterLocator initialValue() {
+                                    return new EyeCenterLocator(true);
+                                }
+                            };
+
+                    @Override
+                    public void locatePupils(LuminanceFrame frame, float[] eyes, int count,
+                                             float[] pupils) {
+                        mLocators.get().locatePupils(frame.getBuffer(), frame.getHeight(),
+                                frame.getWidth(), eyes, count, pupils);
+                    }
+                }, new PupilExecutor.Listener() {
+                    @Override
+                    public void onPupilLocated(PupilExecutor.Job job) {
+                        onResult(job);
+                    }
+                });
+        executor.start();
+        try {
+            // Warm up the JIT before measuring
+            runFaces(executor, MAX_FACES, false);
+            for (int faces = 1; faces <= MAX_FACES; ++faces) {
+                runFaces(executor, faces, true);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void runFaces(PupilExecutor executor, int faces, boolean report)
+            throws InterruptedException {
+        // Faces in two columns and four rows of the rotated frame, which is 240 wide and 320 high.
+        SyntheticEyes eyes = new SyntheticEyes(WIDTH, HEIGHT, faces);
+        for (int face = 0; face < faces; ++face) {
+            float centerX = 60 + 120 * (face % 2);
+            float centerY = 40 + 80 * (face / 2);
+            for (int side = 0; side < 2; ++side) {
+                int eye = 2 * face + side;
+                mEyeX[eye] = centerX + (side == 0 ? -DISTANCE / 2 : DISTANCE / 2);
+                mEyeY[eye] = centerY;
+                eyes.drawEye(mEyeX[eye], mEyeY[eye], DISTANCE, true);
+            }
+        }
+        synchronized (this) {
+            for (int i = 0; i < mResults.length; ++i) {
+                mResults[i] = 0;
+            }
+            mMaxError = 0;
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < FRAMES; ++i) {
+            LuminanceFrame frame = mPool.obtain();
+            frame.fill(eyes.getFrame(), WIDTH, HEIGHT, i, 0, System.nanoTime());
+            mPool.publish(frame);
+            synchronized (this) {
+                mPending = 2 * faces;
+                for (int eye = 0; eye < 2 * faces; ++eye) {
+                    executor.submit(frame, eye / 2, eye % 2, mEyeX[eye], mEyeY[eye], DISTANCE,
+                            false, 0, 0);
+                }
+                while (mPending > 0) {
+                    wait();
+                }
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        if (report) {
+            System.out.println(String.format(Locale.US,
+                    "%d faces: %.0f frames/s, %.0f pupils/s, max error %.2f px", faces,
+                    FRAMES / seconds, 2 * faces * FRAMES / seconds, mMaxError));
+        }
+        synchronized (this) {
+            for (int eye = 0; eye < 2 * faces; ++eye) {
+                assertEquals("results of face " + eye / 2 + " side " + eye % 2, FRAMES,
+                        mResults[eye]);
+            }
+            assertTrue("max error " + mMaxError, mMaxError <= MAX_ERROR);
+        }
+    }
+
+    private synchronized void onResult(PupilExecutor.Job job) {
+        int eye = 2 * job.faceId + job.side;
+        ++mResults[eye];
+        float error = Float.POSITIVE_INFINITY;
+        if (job.status == PupilExecutor.STATUS_FOUND) {
+            error = (float) Math.hypot(job.pupilX - mEyeX[eye], job.pupilY - mEyeY[eye]);
+        }
+        mMaxError = Math.max(mMaxError, error);
+        if (--mPending == 0) {
+            notifyAll();
+        }
+    }
+}
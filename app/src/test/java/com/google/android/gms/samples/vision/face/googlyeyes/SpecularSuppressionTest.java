@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.face.googlyeyes;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Accuracy and speed of the fast specular suppression against inpainting, on synthetic eyes with
+ * one to three glints injected on the iris and pupil.  Prints the mean and largest distance of the
+ * located pupils from the drawn ones and the time per eye of both modes, and checks that clamping
+ * is about as accurate as inpainting.
+ */
+public class SpecularSuppressionTest {
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final int EYES = 100;
+    private static final int ROUNDS = 3;
+    // Fraction of the eyes that must be found in either mode.
+    private static final float MIN_FOUND = 0.95f;
+    // How much larger the mean error of clamping may be than the one of inpainting, in pixels.
+    private static final float MAX_MEAN_ERROR_INCREASE = 0.25f;
+
+    private final ByteBuffer[] mFrames = new ByteBuffer[EYES];
+    private final float[] mEyes = new float[EYES * PupilExecutor.EYE_STRIDE];
+    private final float[] mPupil = new float[PupilExecutor.PUPIL_STRIDE];
+
+    // Results of the last run.
+    private int mFound;
+    private double mMeanError;
+    private double mMaxError;
+
+    @Test
+    public void clampingIsAsAccurateAsInpainting() {
+        Random random = new Random(11);
+        for (int i = 0; i < EYES; ++i) {
+            // The rotated frame is HEIGHT wide and WIDTH high
+            float x = 60 + random.nextFloat() * (HEIGHT - 120);
+            float y = 60 + random.nextFloat() * (WIDTH - 120);
+            float distance = 50 + random.nextFloat() * 30;
+            SyntheticEyes eyes = new SyntheticEyes(WIDTH, HEIGHT, i);
+            eyes.drawEye(x, y, distance, false);
+            for (int glints = 1 + random.nextInt(3); glints > 0; --glints) {
+                double angle = random.nextDouble() * 2 * Math.PI;
+                double radius = random.nextDouble() * 0.1 * distance;
+                eyes.drawGlint(x + (float) (radius * Math.cos(angle)),
+                        y + (float) (radius * Math.sin(angle)),
+                        1 + random.nextFloat() * 0.02f * distance);
+            }
+            mFrames[i] = ByteBuffer.wrap(eyes.getFrame());
+            int eye = i * PupilExecutor.EYE_STRIDE;
+            mEyes[eye + PupilExecutor.EYE_X] = x;
+            mEyes[eye + PupilExecutor.EYE_Y] = y;
+            mEyes[eye + PupilExecutor.EYE_DISTANCE] = distance;
+        }
+
+        EyeCenterLocator fast = new EyeCenterLocator(true);
+        EyeCenterLocator inpaint = new EyeCenterLocator(false);
+        double fastMicros = Double.MAX_VALUE;
+        double inpaintMicros = Double.MAX_VALUE;
+        int inpaintFound = 0;
+        double inpaintMeanError = 0;
+        double inpaintMaxError = 0;
+        // Take the best time of a few rounds, the first one also warms up the JIT.  The accuracy
+        // is the same in every round.
+        for (int round = 0; round < ROUNDS; ++round) {
+            inpaintMicros = Math.min(inpaintMicros, run(inpaint));
+            inpaintFound = mFound;
+            inpaintMeanError = mMeanError;
+            inpaintMaxError = mMaxError;
+            fastMicros = Math.min(fastMicros, run(fast));
+        }
+        System.out.println(String.format(Locale.US,
+                "inpaint: %d/%d found, mean error %.2f px, max error %.2f px, %.1f us/eye",
+                inpaintFound, EYES, inpaintMeanError, inpaintMaxError, inpaintMicros));
+        System.out.println(String.format(Locale.US,
+                "clamp:   %d/%d found, mean error %.2f px, max error %.2f px, %.1f us/eye",
+                mFound, EYES, mMeanError, mMaxError, fastMicros));
+
+        assertTrue("inpaint found " + inpaintFound, inpaintFound >= MIN_FOUND * EYES);
+        assertTrue("clamp found " + mFound, mFound >= MIN_FOUND * EYES);
+        assertTrue("clamp mean error " + mMeanError + ", inpaint " + inpaintMeanError,
+                mMeanError <= inpaintMeanError + MAX_MEAN_ERROR_INCREASE);
+    }
+
+    /**
+     * Locates all eyes with the locator, leaves the accuracy in mFound, mMeanError and mMaxError,
+     * and returns the mean time per eye in microseconds.
+     */
+    private double run(EyeCenterLocator locator) {
+        mFound = 0;
+        mMeanError = 0;
+        mMaxError = 0;
+        float[] eye = new float[PupilExecutor.EYE_STRIDE];
+        long start = System.nanoTime();
+        for (int i = 0; i < EYES; ++i) {
+            System.arraycopy(mEyes, i * PupilExecutor.EYE_STRIDE, eye, 0, eye.length);
+            locator.locatePupils(mFrames[i], HEIGHT, WIDTH, eye, 1, mPupil);
+            if (mPupil[PupilExecutor.PUPIL_STATUS] == PupilExecutor.STATUS_FOUND) {
+                double error = Math.hypot(mPupil[PupilExecutor.PUPIL_X] - eye[PupilExecutor.EYE_X],
+                        mPupil[PupilExecutor.PUPIL_Y] - eye[PupilExecutor.EYE_Y]);
+                ++mFound;
+                mMeanError += error;
+                mMaxError = Math.max(mMaxError, error);
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        mMeanError /= Math.max(mFound, 1);
+        return nanos / 1000.0 / EYES;
+    }
+}
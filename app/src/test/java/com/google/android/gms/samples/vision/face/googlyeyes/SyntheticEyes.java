@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.face.googlyeyes;
+
+import java.util.Random;
+
+/**
+ * Draws camera frames with synthetic eyes for the pupil locator tests.  Positions are given in the
+ * frame rotated 90 degree counterclockwise, like the eye positions of the face detector, and the
+ * frame is returned as the camera delivers it.
+ */
+final class SyntheticEyes {
+    // Sizes of the eye parts, as fractions of the inter-eye distance.
+    private static final float SCLERA_HALF_WIDTH = 0.18f;
+    private static final float SCLERA_HALF_HEIGHT = 0.09f;
+    private static final float IRIS_RADIUS = 0.1f;
+    private static final float PUPIL_RADIUS = 0.045f;
+    private static final float GLINT_RADIUS = 0.025f;
+    private static final float GLINT_OFFSET = 0.03f;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final byte[] mFrame;
+    private final Random mRandom;
+
+    /**
+     * Starts a camera frame of width x height pixels with a shaded, noisy skin background.
+     */
+    SyntheticEyes(int width, int height, long seed) {
+        mWidth = width;
+        mHeight = height;
+        mFrame = new byte[width * height * 3 / 2];
+        mRandom = new Random(seed);
+        for (int y = 0; y < width; ++y) {
+            for (int x = 0; x < height; ++x) {
+                set(x, y, 140 + 30 * x / height + 20 * y / width + noise());
+            }
+        }
+    }
+
+    /**
+     * Draws an eye with its pupil at (x, y) of the rotated frame, sized for the given inter-eye
+     * distance, optionally with a glint next to the pupil.
+     */
+    void drawEye(float x, float y, float distance, boolean glint) {
+        fillEllipse(x, y, SCLERA_HALF_WIDTH * distance, SCLERA_HALF_HEIGHT * distance, 210);
+        fillEllipse(x, y, IRIS_RADIUS * distance, IRIS_RADIUS * distance, 100);
+        fillEllipse(x, y, PUPIL_RADIUS * distance, PUPIL_RADIUS * distance, 25);
+        if (glint) {
+            drawGlint(x + GLINT_OFFSET * distance, y - GLINT_OFFSET * distance,
+                    Math.max(1.0f, GLINT_RADIUS * distance));
+        }
+    }
+
+    /**
+     * Draws a specular highlight of the given radius at (x, y) of the rotated frame.
+     */
+    void drawGlint(float x, float y, float radius) {
+        fillEllipse(x, y, radius, radius, 250);
+    }
+
+    /**
+     * Returns the YUV frame; the U and V planes are left zero.
+     */
+    byte[] getFrame() {
+        return mFrame;
+    }
+
+    int getWidth() {
+        return mWidth;
+    }
+
+    int getHeight() {
+        return mHeight;
+    }
+
+    // Pixel (x, y) of the rotated frame, which is height wide and width high, is pixel
+    // (width-1-y, x) of the camera frame.
+    private void set(int x, int y, int value) {
+        mFrame[x * mWidth + mWidth - 1 - y] = (byte) Math.max(0, Math.min(255, value));
+    }
+
+    private void fillEllipse(float cx, float cy, float rx, float ry, int value) {
+        for (int y = (int) Math.floor(cy - ry); y <= (int) Math.ceil(cy + ry); ++y) {
+            for (int x = (int) Math.floor(cx - rx); x <= (int) Math.ceil(cx + rx); ++x) {
+                float dx = (x - cx) / rx;
+                float dy = (y - cy) / ry;
+                if (x >= 0 && x < mHeight && y >= 0 && y < mWidth && dx * dx + dy * dy <= 1) {
+                    set(x, y, value + noise());
+                }
+            }
+        }
+    }
+
+    private int noise() {
+        return (int) Math.round(mRandom.nextGaussian() * 4);
+    }
+}
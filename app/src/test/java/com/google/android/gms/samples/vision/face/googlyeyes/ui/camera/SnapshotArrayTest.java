@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.face.googlyeyes.ui.camera;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Contention benchmark of {@link SnapshotArray}, the graphic registry of {@link GraphicOverlay},
+ * against a HashSet drawn under its lock like the overlay did before.  Several tracker threads add
+ * graphics that are already present at a high rate, and add and remove one of their own now and
+ * then, while a renderer thread draws all graphics over and over.  Prints the updates and draws
+ * per second of both, and checks that every draw saw every permanent graphic exactly once.
+ */
+public class SnapshotArrayTest {
+    private static final int GRAPHICS = 64;
+    private static final int TRACKERS = 4;
+    // Every TRANSIENT_INTERVAL-th update of a tracker adds or removes its own graphic.
+    private static final int TRANSIENT_INTERVAL = 16;
+    private static final long RUN_MILLIS = 500;
+
+    /**
+     * The operations of the overlay on its graphics.  draw returns the number of permanent graphics
+     * it saw, or -1 if it saw one twice.
+     */
+    private interface Registry {
+        void add(Object graphic);
+        void remove(Object graphic);
+        int draw();
+    }
+
+    private final Object[] mGraphics = new Object[GRAPHICS];
+
+    @Test
+    public void addingAPresentItemKeepsTheSnapshot() {
+        SnapshotArray<Object> array = new SnapshotArray<>(new Object[0]);
+        Object first = new Object();
+        Object second = new Object();
+        assertTrue(array.add(first));
+        assertTrue(array.add(second));
+        Object[] snapshot = array.get();
+
+        assertFalse(array.add(first));
+        assertSame(snapshot, array.get());
+        assertTrue(array.remove(first));
+        assertFalse(array.remove(first));
+        assertEquals(1, array.get().length);
+        assertSame(second, array.get()[0]);
+        assertEquals(2, snapshot.length);
+    }
+
+    @Test
+    public void benchmarkContention() throws InterruptedException {
+        for (int i = 0; i < GRAPHICS; ++i) {
+            mGraphics[i] = new Object();
+        }
+        // Warm up the JIT before measuring
+        run("snapshot", newSnapshotRegistry(), false);
+        run("locked set", newLockedRegistry(), false);
+        run("snapshot", newSnapshotRegistry(), true);
+        run("locked set", newLockedRegistry(), true);
+    }
+
+    //==============================================================================================
+    // Private
+    //==============================================================================================
+
+    private Registry newSnapshotRegistry() {
+        final SnapshotArray<Object> array = new SnapshotArray<>(new Object[0]);
+        return new Registry() {
+            @Override
+            public void add(Object graphic) {
+                array.add(graphic);
+            }
+
+            @Override
+            public void remove(Object graphic) {
+                array.remove(graphic);
+            }
+
+            @Override
+            public int draw() {
+                return countPermanent(array.get());
+            }
+        };
+    }
+
+    private Registry newLockedRegistry() {
+        final Set<Object> set = new HashSet<>();
+        return new Registry() {
+            @Override
+            public synchronized void add(Object graphic) {
+                set.add(graphic);
+            }
+
+            @Override
+            public synchronized void remove(Object graphic) {
+                set.remove(graphic);
+            }
+
+            @Override
+            public synchronized int draw() {
+                return countPermanent(set.toArray());
+            }
+        };
+    }
+
+    private void run(String name, final Registry registry, boolean report)
+            throws InterruptedException {
+        for (Object graphic : mGraphics) {
+            registry.add(graphic);
+        }
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final long[] updates = new long[TRACKERS];
+        Thread[] trackers = new Thread[TRACKERS];
+        for (int t = 0; t < TRACKERS; ++t) {
+            final int tracker = t;
+            trackers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Object own = new Object();
+                    long count = 0;
+                    while (running.get()) {
+                        registry.add(mGraphics[(int) (count % GRAPHICS)]);
+                        if (count % TRANSIENT_INTERVAL == 0) {
+                            if (count % (2 * TRANSIENT_INTERVAL) == 0) {
+                                registry.add(own);
+                            } else {
+                                registry.remove(own);
+                            }
+                        }
+                        ++count;
+                    }
+                    updates[tracker] = count;
+                }
+            });
+            trackers[t].start();
+        }
+
+        long draws = 0;
+        int minSeen = GRAPHICS;
+        long start = System.nanoTime();
+        long end = start + RUN_MILLIS * 1000000L;
+        long now;
+        do {
+            int seen = registry.draw();
+            minSeen = Math.min(minSeen, seen);
+            ++draws;
+            now = System.nanoTime();
+        } while (now < end);
+        running.set(false);
+        long totalUpdates = 0;
+        for (int t = 0; t < TRACKERS; ++t) {
+            trackers[t].join();
+            totalUpdates += updates[t];
+        }
+        double seconds = (now - start) / 1e9;
+
+        if (report) {
+            System.out.println(String.format(Locale.US,
+                    "%s: %d graphics, %d trackers, %.0f updates/s, %.0f draws/s", name,
+                    GRAPHICS, TRACKERS, totalUpdates / seconds, draws / seconds));
+        }
+        assertEquals(name + " draws that missed or repeated a graphic", GRAPHICS, minSeen);
+    }
+
+    /**
+     * Stands in for drawing the graphics: counts the permanent ones among them, or returns -1 if one
+     * of them occurs twice.
+     */
+    private int countPermanent(Object[] graphics) {
+        boolean[] seen = new boolean[GRAPHICS];
+        int count = 0;
+        for (Object graphic : graphics) {
+            for (int i = 0; i < GRAPHICS; ++i) {
+                if (mGraphics[i] == graphic) {
+                    if (seen[i]) {
+                        return -1;
+                    }
+                    seen[i] = true;
+                    ++count;
+                }
+            }
+        }
+        return count;
+    }
+}